@@ -0,0 +1,151 @@
+package com.ashtonit.odb.loadtest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ashtonit.odb.jndi.OdbPoolFactory;
+import com.ashtonit.odb.jndi.OrientDBObjectFactory;
+import com.orientechnologies.orient.core.db.ODatabasePool;
+import com.orientechnologies.orient.core.db.ODatabaseType;
+import com.orientechnologies.orient.core.db.OPartitionedDatabasePool;
+import com.orientechnologies.orient.core.db.OPartitionedDatabasePoolFactory;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+
+
+/**
+ * <p>
+ * Compares the cost of acquiring and releasing a connection from the two pool backends OdbRealm can use: an
+ * {@link OPartitionedDatabasePool} from an {@link OPartitionedDatabasePoolFactory}, as created by
+ * <code>OPDPFObjectFactory</code>, and an {@link ODatabasePool} from the {@link OdbPoolFactory} created by
+ * {@link OrientDBObjectFactory}. Both use in-memory databases so only the pools are measured, not hashing, storage or
+ * the network.
+ * </p>
+ * <p>
+ * Throughput and sampled latency are reported. Run it with the number of contending threads given by <code>-t</code>,
+ * for example:
+ * </p>
+ *
+ * <pre>
+ *   mvn compile exec:exec -Dexec.executable=java -Dexec.args="-cp %classpath org.openjdk.jmh.Main AcquireBenchmark -t 32"
+ * </pre>
+ *
+ * @author Bruce Ashton
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@Fork(1)
+@Measurement(iterations = 5, time = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+public class AcquireBenchmark {
+
+    /**
+     * Acquires from an {@link OPartitionedDatabasePool}.
+     *
+     * @param state the pool
+     */
+    @Benchmark
+    public void partitioned(final PartitionedState state) {
+        try (ODatabaseDocument db = state.pool.acquire()) {
+            // Acquire and release only.
+        }
+    }
+
+
+    /**
+     * Acquires from an {@link ODatabasePool}.
+     *
+     * @param state the pool
+     */
+    @Benchmark
+    public void session(final SessionState state) {
+        try (ODatabaseDocument db = state.pool.acquire()) {
+            // Acquire and release only.
+        }
+    }
+
+
+    /**
+     * The legacy pool backend.
+     */
+    @State(Scope.Benchmark)
+    public static class PartitionedState {
+
+        @Param("100")
+        int capacity;
+
+        OPartitionedDatabasePoolFactory factory;
+        OPartitionedDatabasePool pool;
+
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            final String url = "memory:acquire-partitioned";
+            new ODatabaseDocumentTx(url).create().close();
+            factory = new OPartitionedDatabasePoolFactory(capacity);
+            pool = factory.get(url, "admin", "admin");
+        }
+
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            factory.close();
+        }
+    }
+
+
+    /**
+     * The OrientDB 3.x pool backend.
+     */
+    @State(Scope.Benchmark)
+    public static class SessionState {
+
+        @Param("100")
+        int capacity;
+
+        OdbPoolFactory factory;
+        ODatabasePool pool;
+
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            final File home = Files.createTempDirectory("odb-acquire").toFile();
+            factory = create(home);
+            factory.getOrientDB().create("acquire", ODatabaseType.MEMORY);
+            pool = factory.get("acquire", "admin", "admin");
+        }
+
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            factory.close();
+        }
+
+
+        private OdbPoolFactory create(final File home) throws NamingException {
+            final Reference reference = new Reference(OdbPoolFactory.class.getName());
+            reference.add(new StringRefAddr("capacity", Integer.toString(capacity)));
+            reference.add(new StringRefAddr("url", "embedded:" + home.getPath()));
+            return new OrientDBObjectFactory().getObjectInstance(reference, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.ashtonit.odb.loadtest;
+
+import static com.ashtonit.odb.loadtest.LoginStorm.PING;
+import static com.ashtonit.odb.loadtest.LoginStorm.password;
+import static com.ashtonit.odb.loadtest.LoginStorm.username;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ashtonit.odb.loadtest.LoginStorm.Workload;
+
+
+/**
+ * A single client thread. It repeatedly picks a random user and performs one operation of the configured workload,
+ * recording the latency of each operation in the shared report.
+ *
+ * @author Bruce Ashton
+ */
+final class LoadClient implements Runnable {
+
+    private final String baseUrl;
+    private final byte[] buffer = new byte[4096];
+    private final Random random;
+    private final LoadReport report;
+    private final AtomicBoolean running;
+    private final int users;
+    private final Workload workload;
+
+
+    LoadClient(final String baseUrl, final Workload workload, final int users, final LoadReport report, final AtomicBoolean running, final long seed) {
+        this.baseUrl = baseUrl;
+        this.workload = workload;
+        this.users = users;
+        this.report = report;
+        this.running = running;
+        this.random = new Random(seed);
+    }
+
+
+    @Override
+    public void run() {
+        String session = null;
+        while (running.get()) {
+            final int user = random.nextInt(users);
+            try {
+                if (workload == Workload.SESSION && session == null) {
+                    // The login that opens the session is not part of the measured operation.
+                    session = formLogin(user);
+                    if (session == null) {
+                        report.record(0L, false);
+                    }
+                    continue;
+                }
+                final long start = System.nanoTime();
+                boolean ok;
+                switch (workload) {
+                    case BASIC:
+                        ok = request("GET", PING, basic(user), null, null).status == 200;
+                        break;
+                    case FORM:
+                        ok = formLogin(user) != null;
+                        break;
+                    default:
+                        final Response response = request("GET", PING, null, session, null);
+                        ok = response.status == 200;
+                        session = ok ? response.cookie : null;
+                        break;
+                }
+                report.record(System.nanoTime() - start, ok);
+            } catch (final IOException e) {
+                report.record(0L, false);
+                session = null;
+            }
+        }
+    }
+
+
+    private String basic(final int user) {
+        final String credentials = username(user) + ":" + password(user);
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+
+    private void drain(final InputStream in) throws IOException {
+        if (in != null) {
+            try (InputStream i = in) {
+                while (i.read(buffer) >= 0) {
+                    // Read to the end so the connection can be kept alive.
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Performs a complete FORM login and returns the session cookie, or null if the login failed.
+     */
+    private String formLogin(final int user) throws IOException {
+        final Response page = request("GET", PING, null, null, null);
+        if (page.status != 200 || page.cookie == null) {
+            return null;
+        }
+        final String body = "j_username=" + URLEncoder.encode(username(user), "UTF-8") + "&j_password="
+                + URLEncoder.encode(password(user), "UTF-8");
+        final Response check = request("POST", "/j_security_check", null, page.cookie, body);
+        if (check.status != 302 && check.status != 303) {
+            return null;
+        }
+        final Response target = request("GET", PING, null, check.cookie, null);
+        return target.status == 200 ? target.cookie : null;
+    }
+
+
+    private Response request(final String method, final String path, final String authorization, final String cookie, final String body) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(method);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        if (cookie != null) {
+            connection.setRequestProperty("Cookie", cookie);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        final int status = connection.getResponseCode();
+        final String setCookie = connection.getHeaderField("Set-Cookie");
+        drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+        if (setCookie == null) {
+            return new Response(status, cookie);
+        }
+        final int index = setCookie.indexOf(';');
+        return new Response(status, index < 0 ? setCookie : setCookie.substring(0, index));
+    }
+
+
+    private static final class Response {
+
+        final String cookie;
+        final int status;
+
+
+        Response(final int status, final String cookie) {
+            this.status = status;
+            this.cookie = cookie;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.ashtonit.odb.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+
+/**
+ * Collects latencies from all client threads and produces the throughput, latency and allocation report for the
+ * measured interval.
+ * <p>
+ * Allocation is the sum of bytes allocated between {@link #start()} and {@link #finish()} by the server side threads,
+ * that is every thread in the JVM except the client threads and the main thread. It is summed per thread, so a thread
+ * that exits during the interval is left out rather than subtracted, and the figure can never be negative.
+ * </p>
+ *
+ * @author Bruce Ashton
+ */
+final class LoadReport {
+
+    static final String CLIENT_THREAD_PREFIX = "loadtest-client-";
+
+    private final AtomicLong errors = new AtomicLong();
+    private final Recorder recorder = new Recorder(3);
+
+    private Map<Long, Long> allocatedAtStart;
+    private long startNanos;
+
+
+    /**
+     * Returns the bytes allocated so far by each server side thread, by thread id.
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long[] ids = bean.getAllThreadIds();
+        final ThreadInfo[] infos = bean.getThreadInfo(ids);
+        final long[] bytes = bean.getThreadAllocatedBytes(ids);
+        final Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] == null || bytes[i] < 0) {
+                continue;
+            }
+            final String name = infos[i].getThreadName();
+            if (!name.startsWith(CLIENT_THREAD_PREFIX) && !"main".equals(name)) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+
+    /**
+     * Ends the measured interval.
+     *
+     * @return the result for the measured interval
+     */
+    Result finish() {
+        final long elapsed = System.nanoTime() - startNanos;
+        final Histogram histogram = recorder.getIntervalHistogram();
+        long allocated = 0L;
+        for (final Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+            allocated += entry.getValue() - allocatedAtStart.getOrDefault(entry.getKey(), 0L);
+        }
+        return new Result(histogram, errors.get(), elapsed, allocated);
+    }
+
+
+    /**
+     * Records one operation.
+     *
+     * @param nanos the latency of the operation
+     * @param ok false if the operation failed
+     */
+    void record(final long nanos, final boolean ok) {
+        if (ok) {
+            recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+        } else {
+            errors.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Discards everything recorded so far, during warm up, and starts the measured interval.
+     */
+    void start() {
+        recorder.reset();
+        errors.set(0L);
+        allocatedAtStart = allocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+
+    /**
+     * The report for one measured interval.
+     */
+    static final class Result {
+
+        private final long allocated;
+        private final long elapsed;
+        private final long errors;
+        private final Histogram histogram;
+
+
+        Result(final Histogram histogram, final long errors, final long elapsed, final long allocated) {
+            this.histogram = histogram;
+            this.errors = errors;
+            this.elapsed = elapsed;
+            this.allocated = allocated;
+        }
+
+
+        /**
+         * Checks the result against the gates in the options and returns a description of each one breached.
+         *
+         * @param options the command line options
+         * @return the breached gates, empty if there are none
+         */
+        List<String> gate(final Map<String, String> options) {
+            final List<String> failures = new ArrayList<>();
+            if (options.containsKey("maxP99Millis") && percentileMillis(99.0) > Double.parseDouble(options.get("maxP99Millis"))) {
+                failures.add("p99 " + percentileMillis(99.0) + "ms > " + options.get("maxP99Millis") + "ms");
+            }
+            if (options.containsKey("maxP999Millis") && percentileMillis(99.9) > Double.parseDouble(options.get("maxP999Millis"))) {
+                failures.add("p999 " + percentileMillis(99.9) + "ms > " + options.get("maxP999Millis") + "ms");
+            }
+            if (options.containsKey("minThroughput") && throughput() < Double.parseDouble(options.get("minThroughput"))) {
+                failures.add("throughput " + throughput() + "/s < " + options.get("minThroughput") + "/s");
+            }
+            if (options.containsKey("maxAllocatedPerOp") && allocatedPerOperation() > Long.parseLong(options.get("maxAllocatedPerOp"))) {
+                failures.add("allocated " + allocatedPerOperation() + "B/op > " + options.get("maxAllocatedPerOp") + "B/op");
+            }
+            if (options.containsKey("maxErrors") && errors > Long.parseLong(options.get("maxErrors"))) {
+                failures.add("errors " + errors + " > " + options.get("maxErrors"));
+            }
+            return failures;
+        }
+
+
+        /**
+         * Returns the result as ordered name and value pairs.
+         *
+         * @return the result as ordered name and value pairs
+         */
+        Map<String, String> toMap() {
+            final long operations = histogram.getTotalCount();
+            final Map<String, String> map = new LinkedHashMap<>();
+            map.put("duration.seconds", String.format(Locale.ROOT, "%.1f", elapsed / 1e9));
+            map.put("operations", Long.toString(operations));
+            map.put("errors", Long.toString(errors));
+            map.put("throughput.per.second", String.format(Locale.ROOT, "%.1f", throughput()));
+            map.put("latency.p50.millis", String.format(Locale.ROOT, "%.3f", percentileMillis(50.0)));
+            map.put("latency.p99.millis", String.format(Locale.ROOT, "%.3f", percentileMillis(99.0)));
+            map.put("latency.p999.millis", String.format(Locale.ROOT, "%.3f", percentileMillis(99.9)));
+            map.put("latency.max.millis", String.format(Locale.ROOT, "%.3f", histogram.getMaxValue() / 1000.0));
+            map.put("allocated.bytes", Long.toString(allocated));
+            map.put("allocated.bytes.per.operation", Long.toString(allocatedPerOperation()));
+            return map;
+        }
+
+
+        private long allocatedPerOperation() {
+            final long operations = histogram.getTotalCount();
+            return operations == 0 ? 0L : allocated / operations;
+        }
+
+
+        private double percentileMillis(final double percentile) {
+            return histogram.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+
+        private double throughput() {
+            return histogram.getTotalCount() * 1e9 / elapsed;
+        }
+    }
+}
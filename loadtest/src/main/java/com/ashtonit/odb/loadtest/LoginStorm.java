@@ -0,0 +1,384 @@
+package com.ashtonit.odb.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.authenticator.BasicAuthenticator;
+import org.apache.catalina.authenticator.FormAuthenticator;
+import org.apache.catalina.deploy.NamingResourcesImpl;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.descriptor.web.ContextResource;
+import org.apache.tomcat.util.descriptor.web.ContextResourceLink;
+import org.apache.tomcat.util.descriptor.web.LoginConfig;
+import org.apache.tomcat.util.descriptor.web.SecurityCollection;
+import org.apache.tomcat.util.descriptor.web.SecurityConstraint;
+
+import com.ashtonit.odb.jndi.OPDPFObjectFactory;
+import com.ashtonit.odb.jndi.OServerObjectFactory;
+import com.ashtonit.odb.jndi.OdbPoolFactory;
+import com.ashtonit.odb.jndi.OrientDBObjectFactory;
+import com.ashtonit.odb.realm.OdbRealm;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.db.ODatabaseType;
+import com.orientechnologies.orient.core.db.OPartitionedDatabasePoolFactory;
+import com.orientechnologies.orient.core.db.OrientDB;
+import com.orientechnologies.orient.core.metadata.security.OSecurity;
+import com.orientechnologies.orient.server.OServer;
+
+
+/**
+ * <p>
+ * An end-to-end login storm. It starts an embedded OrientDB server through {@link OServerObjectFactory}, creates a
+ * database of users, then starts embedded Tomcat with the OdbResource factories declared as global resources and
+ * {@link OdbRealm} on the context, as described in the user guide. Client threads then drive one of three workloads
+ * against a protected servlet:
+ * </p>
+ * <ul>
+ * <li><code>basic</code> - a BASIC authenticated request without a session, so every request authenticates</li>
+ * <li><code>form</code> - a complete FORM login: login page, <code>j_security_check</code> and the protected page</li>
+ * <li><code>session</code> - one FORM login per client thread, then authenticated requests on that session</li>
+ * </ul>
+ * <p>
+ * By default both pool factories share the context of the embedded server and the realm opens the database by a
+ * <code>plocal:</code> URL, as in the documented deployment, so a login costs no network round trip and contention in
+ * the realm and the pool factories is not hidden behind it. <code>--transport=remote</code> goes through the server's
+ * binary port instead, to measure a realm in front of a separate OrientDB server.
+ * </p>
+ * <p>
+ * Throughput, latency percentiles and allocation are reported once the run ends. If any of the <code>max*</code> or
+ * <code>min*</code> gates are given and breached the process exits with status 1, so it can be used to gate
+ * regressions.
+ * </p>
+ * <p>
+ * Options are given as <code>--name=value</code>:
+ * </p>
+ *
+ * <pre>
+ *   --workload=basic|form|session   (basic)
+ *   --backend=opdpf|orientdb        (opdpf) the pool factory used by the realm
+ *   --transport=embedded|remote     (embedded) how the realm reaches the database
+ *   --threads=N                     (16)    concurrent client threads
+ *   --users=N                       (100)   distinct users logging in
+ *   --warmup=S                      (10)    seconds before measuring
+ *   --duration=S                    (30)    seconds measured
+ *   --capacity=N                    (100)   pool factory capacity
+ *   --odbPort=N                     (2424)  OrientDB binary port
+ *   --httpPort=N                    (0)     Tomcat port, 0 for any free port
+ *   --home=DIR                      (temporary directory)
+ *   --report=FILE                   write the report as a properties file
+ *   --maxP99Millis=N --maxP999Millis=N --minThroughput=N --maxErrors=N --maxAllocatedPerOp=N
+ * </pre>
+ *
+ * @author Bruce Ashton
+ */
+public final class LoginStorm {
+
+    static final String PING = "/secure/ping";
+
+    private static final String DB_NAME = "loadtest";
+    private static final String QUERY = "SELECT password, roles.name AS roles FROM OUser WHERE status = 'ACTIVE' AND name = ?";
+    private static final String ROLE = "reader";
+
+    private final Map<String, String> options;
+
+
+    private LoginStorm(final Map<String, String> options) {
+        this.options = options;
+    }
+
+
+    /**
+     * Runs the login storm.
+     *
+     * @param args options in the form <code>--name=value</code>
+     * @throws Exception if the environment cannot be started
+     */
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int index = arg.indexOf('=');
+            if (!arg.startsWith("--") || index < 0) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            options.put(arg.substring(2, index), arg.substring(index + 1));
+        }
+        System.exit(new LoginStorm(options).run());
+    }
+
+
+    /**
+     * Returns the password of the numbered test user.
+     *
+     * @param user the user number
+     * @return the password
+     */
+    static String password(final int user) {
+        return "password" + user;
+    }
+
+
+    /**
+     * Returns the name of the numbered test user.
+     *
+     * @param user the user number
+     * @return the username
+     */
+    static String username(final int user) {
+        return "user" + user;
+    }
+
+
+    private static ContextResource resource(final String name, final Class<?> type, final Class<?> factory, final String closeMethod, final String... properties) {
+        final ContextResource resource = new ContextResource();
+        resource.setAuth("Container");
+        resource.setCloseMethod(closeMethod);
+        resource.setName(name);
+        resource.setSingleton(true);
+        resource.setType(type.getName());
+        resource.setProperty("factory", factory.getName());
+        for (int i = 0; i < properties.length; i += 2) {
+            resource.setProperty(properties[i], properties[i + 1]);
+        }
+        return resource;
+    }
+
+
+    private static ContextResourceLink resourceLink(final String name, final Class<?> type) {
+        final ContextResourceLink link = new ContextResourceLink();
+        link.setGlobal(name);
+        link.setName(name);
+        link.setType(type.getName());
+        return link;
+    }
+
+
+    private void createUsers(final OServer server, final int users) {
+        final OrientDB orientDB = server.getContext();
+        if (!orientDB.exists(DB_NAME)) {
+            orientDB.create(DB_NAME, ODatabaseType.PLOCAL);
+        }
+        try (ODatabaseSession db = orientDB.open(DB_NAME, "admin", "admin")) {
+            final OSecurity security = db.getMetadata().getSecurity();
+            for (int i = 0; i < users; i++) {
+                if (security.getUser(username(i)) == null) {
+                    security.createUser(username(i), password(i), ROLE);
+                }
+            }
+        }
+    }
+
+
+    private int getInt(final String name, final int defaultValue) {
+        final String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+
+    private int run() throws Exception {
+        final Workload workload = Workload.valueOf(options.getOrDefault("workload", "basic").toUpperCase());
+        final String backend = options.getOrDefault("backend", "opdpf");
+        final boolean remote = "remote".equals(options.getOrDefault("transport", "embedded"));
+        final int threads = getInt("threads", 16);
+        final int users = getInt("users", 100);
+        final int warmup = getInt("warmup", 10);
+        final int duration = getInt("duration", 30);
+        final int capacity = getInt("capacity", 100);
+        final int odbPort = getInt("odbPort", 2424);
+        final int httpPort = getInt("httpPort", 0);
+        final File home = options.containsKey("home") ? new File(options.get("home"))
+                : Files.createTempDirectory("odb-loadtest").toFile();
+
+        // HttpURLConnection only keeps five idle connections per host by default.
+        System.setProperty("http.maxConnections", Integer.toString(threads));
+        System.setProperty("ORIENTDB_HOME", home.getPath());
+
+        final File config = writeServerConfig(home, odbPort);
+        final OServer server = startServer(config);
+        createUsers(server, users);
+
+        final Tomcat tomcat = startTomcat(home, httpPort, workload, backend, remote, config, capacity, odbPort);
+        final String baseUrl = "http://127.0.0.1:" + tomcat.getConnector().getLocalPort();
+
+        final LoadReport report = new LoadReport();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger clientCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                r -> new Thread(r, LoadReport.CLIENT_THREAD_PREFIX + clientCount.incrementAndGet()));
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new LoadClient(baseUrl, workload, users, report, running, i));
+        }
+
+        TimeUnit.SECONDS.sleep(warmup);
+        report.start();
+        TimeUnit.SECONDS.sleep(duration);
+        final LoadReport.Result result = report.finish();
+
+        running.set(false);
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+        tomcat.stop();
+        tomcat.destroy();
+
+        final Map<String, String> lines = new LinkedHashMap<>();
+        lines.put("workload", workload.name().toLowerCase());
+        lines.put("backend", backend);
+        lines.put("transport", remote ? "remote" : "embedded");
+        lines.put("threads", Integer.toString(threads));
+        lines.put("users", Integer.toString(users));
+        lines.putAll(result.toMap());
+
+        final List<String> content = new ArrayList<>();
+        lines.forEach((k, v) -> content.add(k + "=" + v));
+        content.forEach(System.out::println);
+        if (options.containsKey("report")) {
+            Files.write(new File(options.get("report")).toPath(), content, StandardCharsets.UTF_8);
+        }
+
+        final List<String> failures = result.gate(options);
+        for (final String failure : failures) {
+            System.err.println("FAILED: " + failure);
+        }
+        return failures.isEmpty() ? 0 : 1;
+    }
+
+
+    private OServer startServer(final File config) throws NamingException {
+        // The factory is a singleton, so Tomcat's later JNDI lookup of "oserver" returns this same instance.
+        final Reference reference = new Reference(OServer.class.getName());
+        reference.add(new StringRefAddr("configFile", config.getPath()));
+        return new OServerObjectFactory().getObjectInstance(reference, null, null, null);
+    }
+
+
+    private Tomcat startTomcat(final File home, final int httpPort, final Workload workload, final String backend, final boolean remote, final File config, final int capacity, final int odbPort) throws Exception {
+        final Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(new File(home, "tomcat").getPath());
+        tomcat.setPort(httpPort);
+        tomcat.enableNaming();
+
+        // Global resources, as they would be declared in server.xml
+        final NamingResourcesImpl global = tomcat.getServer().getGlobalNamingResources();
+        global.addResource(resource("oserver", OServer.class, OServerObjectFactory.class, "shutdown",
+                "configFile", config.getPath()));
+        global.addResource(resource("opdpfactory", OPartitionedDatabasePoolFactory.class, OPDPFObjectFactory.class,
+                "close", "capacity", Integer.toString(capacity), "server", "oserver"));
+        global.addResource(resource("odbpoolfactory", OdbPoolFactory.class, OrientDBObjectFactory.class, "close",
+                "capacity", Integer.toString(capacity), remote ? "url" : "server", remote ? "remote:127.0.0.1:" + odbPort : "oserver"));
+
+        final File docBase = new File(home, "webapp");
+        docBase.mkdirs();
+        final Context ctx = tomcat.addContext("", docBase.getPath());
+
+        // Resource links, as they would be declared in context.xml
+        ctx.getNamingResources().addResourceLink(resourceLink("oserver", OServer.class));
+        ctx.getNamingResources().addResourceLink(resourceLink("opdpfactory", OPartitionedDatabasePoolFactory.class));
+        ctx.getNamingResources().addResourceLink(resourceLink("odbpoolfactory", OdbPoolFactory.class));
+
+        final OdbRealm realm = new OdbRealm();
+        realm.setDbName(DB_NAME);
+        realm.setDbPass("admin");
+        realm.setDbResource("orientdb".equals(backend) ? "odbpoolfactory" : "opdpfactory");
+        realm.setDbUrl(remote ? "remote:127.0.0.1:" + odbPort + "/" + DB_NAME
+                : "plocal:" + new File(new File(home, "databases"), DB_NAME).getPath());
+        realm.setDbUser("admin");
+        realm.setQuery(QUERY);
+        ctx.setRealm(realm);
+
+        final boolean form = workload != Workload.BASIC;
+        ctx.setLoginConfig(new LoginConfig(form ? "FORM" : "BASIC", "loadtest", "/login", "/error"));
+        ctx.getPipeline().addValve(form ? new FormAuthenticator() : new BasicAuthenticator());
+
+        final SecurityCollection collection = new SecurityCollection();
+        collection.addPattern("/secure/*");
+        final SecurityConstraint constraint = new SecurityConstraint();
+        constraint.addAuthRole(ROLE);
+        constraint.addCollection(collection);
+        ctx.addConstraint(constraint);
+        ctx.addSecurityRole(ROLE);
+
+        Tomcat.addServlet(ctx, "ping", new TextServlet("pong"));
+        ctx.addServletMappingDecoded(PING, "ping");
+        Tomcat.addServlet(ctx, "login", new TextServlet("login"));
+        ctx.addServletMappingDecoded("/login", "login");
+        Tomcat.addServlet(ctx, "error", new TextServlet("error"));
+        ctx.addServletMappingDecoded("/error", "error");
+
+        tomcat.start();
+        return tomcat;
+    }
+
+
+    private File writeServerConfig(final File home, final int odbPort) throws IOException {
+        final File databases = new File(home, "databases");
+        databases.mkdirs();
+        final File config = new File(home, "orientdb-server-config.xml");
+        final List<String> xml = new ArrayList<>();
+        xml.add("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+        xml.add("<orient-server>");
+        xml.add("  <network>");
+        xml.add("    <protocols>");
+        xml.add("      <protocol name=\"binary\" implementation=\"com.orientechnologies.orient.server.network.protocol.binary.ONetworkProtocolBinary\"/>");
+        xml.add("    </protocols>");
+        xml.add("    <listeners>");
+        xml.add("      <listener protocol=\"binary\" socket=\"default\" port-range=\"" + odbPort + "\" ip-address=\"127.0.0.1\"/>");
+        xml.add("    </listeners>");
+        xml.add("  </network>");
+        xml.add("  <users>");
+        xml.add("    <user name=\"root\" password=\"root\" resources=\"*\"/>");
+        xml.add("  </users>");
+        xml.add("  <properties>");
+        xml.add("    <entry name=\"server.database.path\" value=\"" + databases.getPath() + "\"/>");
+        xml.add("  </properties>");
+        xml.add("</orient-server>");
+        Files.write(config.toPath(), xml, StandardCharsets.UTF_8);
+        return config;
+    }
+
+
+    /**
+     * The load patterns the clients can drive.
+     */
+    enum Workload {
+        BASIC, FORM, SESSION
+    }
+
+
+    private static final class TextServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+
+
+        TextServlet(final String text) {
+            this.text = text;
+        }
+
+
+        @Override
+        protected void service(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+            response.setContentType("text/plain");
+            response.getWriter().write(text);
+        }
+    }
+}
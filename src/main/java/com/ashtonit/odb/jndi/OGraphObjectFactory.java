@@ -0,0 +1,142 @@
+package com.ashtonit.odb.jndi;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.Name;
+import javax.naming.NamingException;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.OrientDBConfig;
+import com.orientechnologies.orient.server.OServer;
+
+
+/**
+ * <p>
+ * An implementation of {@link ObjectFactory} that returns an {@link OdbGraphFactory} instance in response to a JNDI
+ * lookup. The graph factory hands out pooled <code>OrientGraph</code> instances, shared by every web application that
+ * links to the resource.
+ * </p>
+ * <p>
+ * The <code>auth</code> attribute should have the value "<code>Container</code>".
+ * </p>
+ * <p>
+ * The maximum number of pooled graphs per database and user can be set with the <code>capacity</code> attribute.
+ * </p>
+ * <p>
+ * The <code>transactional</code> attribute is optional and defaults to "<code>true</code>". If it is
+ * "<code>false</code>" non-transactional graphs are returned by {@link OdbGraphFactory#getGraph(String, String, String)}.
+ * </p>
+ * <p>
+ * The resource should always be a singleton and a <code>closeMethod</code> attribute with the value "<code>close</code>
+ * " should also be present.
+ * </p>
+ * <p>
+ * Use the name of this class as the value of the <code>factory</code> attribute of the <code>&lt;Resource&gt;</code>
+ * tag.
+ * </p>
+ * <p>
+ * The <code>server</code> attribute is optional and should be used when running an embedded database. It references an
+ * <code>OServer</code> instance produced by an <code>OServerObjectFactory</code> factory, exactly as for
+ * {@link OPDPFObjectFactory}. When it is present, graphs returned by
+ * {@link OdbGraphFactory#getGraph(String, String, String)} are opened on the server's <code>OrientDB</code> context,
+ * through one pool per database and user, exactly as {@link OrientDBObjectFactory} pools are, so the server's open
+ * databases are reused instead of being opened again by URL.
+ * </p>
+ * <p>
+ * The <code>type</code> attribute is <code>com.ashtonit.odb.jndi.OdbGraphFactory</code>.
+ * </p>
+ * <p>
+ * An example resource declaration:
+ * </p>
+ *
+ * <pre>
+ * &lt;Resource
+ *   auth="Container"
+ *   capacity="100"
+ *   closeMethod="close"
+ *   factory="com.ashtonit.odb.jndi.OGraphObjectFactory"
+ *   name="ographfactory"
+ *   server="oserver"
+ *   singleton="true"
+ *   transactional="true"
+ *   type="com.ashtonit.odb.jndi.OdbGraphFactory"
+ * /&gt;
+ * </pre>
+ *
+ * @author Bruce Ashton
+ */
+public class OGraphObjectFactory implements ObjectFactory {
+
+    private static final String CAPACITY = "capacity";
+    private static final String JAVA_COMP_ENV = "java:comp/env";
+    private static final Object LOCK = new Object();
+    private static final String SERVER = "server";
+    private static final String TRANSACTIONAL = "transactional";
+
+    private static volatile OdbGraphFactory factory;
+
+
+    /**
+     * Returns an OdbGraphFactory instance, built on the context of an embedded OServer instance if the resource name is
+     * passed in as an attribute. It is the responsibility of the OServer object factory to actually start the server
+     * up. This instance is always a singleton, regardless of attributes in server.xml files etc.
+     *
+     * @param obj the naming reference
+     * @param name not used
+     * @param nameCtx the naming context used if present
+     * @param environment used to create an initial context if a naming context is not passed in
+     * @return the {@link OdbGraphFactory} instance
+     * @throws NamingException if the declared server instance cannot be found in the JNDI context
+     * @see ObjectFactory#getObjectInstance(Object, Name, Context, Hashtable)
+     */
+    @Override
+    public OdbGraphFactory getObjectInstance(final Object obj, final Name name, final Context nameCtx, final Hashtable<?, ?> environment) throws NamingException {
+        if (factory == null) {
+            synchronized (LOCK) {
+                if (factory == null) {
+                    final Reference reference = (Reference) obj;
+
+                    int capacity = 100;
+                    String serverRef = null;
+                    boolean transactional = true;
+
+                    for (final Enumeration<RefAddr> e = reference.getAll(); e.hasMoreElements();) {
+                        final RefAddr addr = e.nextElement();
+                        if (CAPACITY.equalsIgnoreCase(addr.getType())) {
+                            capacity = Integer.valueOf((String) addr.getContent());
+                        } else if (SERVER.equalsIgnoreCase(addr.getType())) {
+                            serverRef = (String) addr.getContent();
+                        } else if (TRANSACTIONAL.equalsIgnoreCase(addr.getType())) {
+                            transactional = Boolean.parseBoolean((String) addr.getContent());
+                        }
+                    }
+
+                    OdbPoolFactory pools = null;
+                    if (serverRef != null) {
+                        final OServer server;
+                        if (nameCtx != null) {
+                            server = (OServer) nameCtx.lookup(serverRef);
+                        } else {
+                            final Context initCtx = new InitialContext(environment);
+                            final Context envCtx = (Context) initCtx.lookup(JAVA_COMP_ENV);
+                            server = (OServer) envCtx.lookup(serverRef);
+                        }
+                        final OrientDBConfig config = OrientDBConfig.builder()
+                                .addConfig(OGlobalConfiguration.DB_POOL_MAX, capacity)
+                                .build();
+                        // The context belongs to the server, it is closed when the server shuts down.
+                        pools = new OdbPoolFactory(server.getContext(), false, config);
+                    }
+                    factory = new OdbGraphFactory(capacity, transactional, pools);
+                }
+            }
+        }
+        return factory;
+    }
+}
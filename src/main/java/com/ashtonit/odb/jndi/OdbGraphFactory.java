@@ -0,0 +1,134 @@
+package com.ashtonit.odb.jndi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.orientechnologies.orient.core.db.ODatabaseDocumentInternal;
+import com.orientechnologies.orient.core.db.ODatabasePool;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+
+/**
+ * <p>
+ * A factory for pooled {@link OrientGraphFactory} instances, returned by {@link OGraphObjectFactory} in response to a
+ * JNDI lookup. It allows every web application in a container to share one graph pool per database and user instead
+ * of each building its own.
+ * </p>
+ * <p>
+ * Graph factories are created on demand and cached by database URL, username and password. Each has a pool with a
+ * maximum size of <code>capacity</code>.
+ * </p>
+ * <p>
+ * If the resource declares an embedded server, {@link #getGraph(String, String, String)} instead wraps sessions from
+ * {@link ODatabasePool} instances built on the server's <code>OrientDB</code> context, so graphs share the server's
+ * open databases, and the pools of any {@link OrientDBObjectFactory} resource on the same server, rather than opening
+ * their own. {@link #get(String, String, String)} always returns a graph factory opened by URL.
+ * </p>
+ *
+ * @author Bruce Ashton
+ */
+public class OdbGraphFactory {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final int capacity;
+    private final ConcurrentMap<String, OrientGraphFactory> factories = new ConcurrentHashMap<>();
+    private final OdbPoolFactory pools;
+    private final boolean transactional;
+
+    private volatile boolean closed;
+
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of pooled graphs per graph factory
+     * @param transactional true if {@link #getGraph(String, String, String)} returns transactional graphs
+     * @param pools the pools on the embedded server's context, or null to open graphs by URL
+     */
+    OdbGraphFactory(final int capacity, final boolean transactional, final OdbPoolFactory pools) {
+        this.capacity = capacity;
+        this.transactional = transactional;
+        this.pools = pools;
+    }
+
+
+    /**
+     * Closes all graph factories and their pools. The embedded server's context is left open.
+     */
+    public void close() {
+        closed = true;
+        for (final OrientGraphFactory factory : factories.values()) {
+            factory.close();
+        }
+        factories.clear();
+        if (pools != null) {
+            pools.close();
+        }
+    }
+
+
+    /**
+     * Returns a pooled graph factory for the given database and user, creating it if necessary.
+     *
+     * @param dbUrl the URL of the database
+     * @param user the database user
+     * @param password the password of the database user
+     * @return the pooled graph factory for the given database and user
+     * @throws IllegalStateException if this factory has been closed
+     */
+    public OrientGraphFactory get(final String dbUrl, final String user, final String password) {
+        if (closed) {
+            throw new IllegalStateException("OdbGraphFactory has been closed");
+        }
+        final String key = dbUrl + SEPARATOR + user + SEPARATOR + password;
+        final OrientGraphFactory factory = factories.get(key);
+        if (factory != null) {
+            return factory;
+        }
+        return factories.computeIfAbsent(key, k -> new OrientGraphFactory(dbUrl, user, password).setupPool(1, capacity));
+    }
+
+
+    /**
+     * Returns a graph from the pool for the given database and user. The graph is transactional or not according to
+     * the <code>transactional</code> attribute of the resource. Call <code>shutdown()</code> on the graph to return it
+     * to the pool.
+     * <p>
+     * If an embedded server is declared, only the database name, the last element of the URL, is used and the graph
+     * is opened on the server's context.
+     * </p>
+     *
+     * @param dbUrl the URL of the database
+     * @param user the database user
+     * @param password the password of the database user
+     * @return a pooled graph instance
+     * @throws IllegalStateException if this factory has been closed
+     */
+    public OrientBaseGraph getGraph(final String dbUrl, final String user, final String password) {
+        if (pools != null) {
+            if (closed) {
+                throw new IllegalStateException("OdbGraphFactory has been closed");
+            }
+            // Use the last element of a URL like plocal:/opt/odb/mydb
+            final String dbName = dbUrl.substring(Math.max(dbUrl.lastIndexOf('/'), dbUrl.lastIndexOf(':')) + 1);
+            final ODatabaseDocumentInternal database = (ODatabaseDocumentInternal) pools.get(dbName, user, password).acquire();
+            return transactional ? new OrientGraph(database) : new OrientGraphNoTx(database);
+        }
+        final OrientGraphFactory factory = get(dbUrl, user, password);
+        return transactional ? factory.getTx() : factory.getNoTx();
+    }
+
+
+    /**
+     * Returns true if {@link #getGraph(String, String, String)} returns transactional graphs.
+     *
+     * @return true if graphs are transactional
+     */
+    public boolean isTransactional() {
+        return transactional;
+    }
+}
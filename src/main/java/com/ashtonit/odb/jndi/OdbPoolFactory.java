@@ -0,0 +1,97 @@
+package com.ashtonit.odb.jndi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.orientechnologies.orient.core.db.ODatabasePool;
+import com.orientechnologies.orient.core.db.OrientDB;
+import com.orientechnologies.orient.core.db.OrientDBConfig;
+
+
+/**
+ * <p>
+ * A factory for {@link ODatabasePool} instances that all share a single {@link OrientDB} context. It is the OrientDB
+ * 3.x counterpart of <code>OPartitionedDatabasePoolFactory</code> and is returned by {@link OrientDBObjectFactory} in
+ * response to a JNDI lookup.
+ * </p>
+ * <p>
+ * Pools are created on demand and cached by database name, username and password. Subsequent calls to
+ * {@link #get(String, String, String)} with the same arguments return the same pool instance.
+ * </p>
+ *
+ * @author Bruce Ashton
+ */
+public class OdbPoolFactory {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final OrientDBConfig config;
+    private final OrientDB orientDB;
+    private final boolean ownsContext;
+    private final ConcurrentMap<String, ODatabasePool> pools = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+
+    /**
+     * Constructor.
+     *
+     * @param orientDB the shared OrientDB context
+     * @param ownsContext true if the context should be closed when this factory is closed
+     * @param config the configuration applied to every pool created by this factory
+     */
+    OdbPoolFactory(final OrientDB orientDB, final boolean ownsContext, final OrientDBConfig config) {
+        this.orientDB = orientDB;
+        this.ownsContext = ownsContext;
+        this.config = config;
+    }
+
+
+    /**
+     * Closes all pools created by this factory. The shared {@link OrientDB} context is also closed, unless it belongs
+     * to an embedded <code>OServer</code> instance.
+     */
+    public void close() {
+        closed = true;
+        for (final ODatabasePool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+        if (ownsContext) {
+            orientDB.close();
+        }
+    }
+
+
+    /**
+     * Returns a pool for the given database and user, creating it if necessary.
+     *
+     * @param dbName the name of the database within the shared OrientDB context
+     * @param user the database user
+     * @param password the password of the database user
+     * @return the pool for the given database and user
+     * @throws IllegalStateException if this factory has been closed
+     */
+    public ODatabasePool get(final String dbName, final String user, final String password) {
+        if (closed) {
+            throw new IllegalStateException("OdbPoolFactory has been closed");
+        }
+        final String key = dbName + SEPARATOR + user + SEPARATOR + password;
+        // Avoid computeIfAbsent() on the hot path, it locks the bin even when the key is present.
+        final ODatabasePool pool = pools.get(key);
+        if (pool != null) {
+            return pool;
+        }
+        return pools.computeIfAbsent(key, k -> new ODatabasePool(orientDB, dbName, user, password, config));
+    }
+
+
+    /**
+     * Returns the shared {@link OrientDB} context.
+     *
+     * @return the shared {@link OrientDB} context
+     */
+    public OrientDB getOrientDB() {
+        return orientDB;
+    }
+}
@@ -0,0 +1,156 @@
+package com.ashtonit.odb.jndi;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.Name;
+import javax.naming.NamingException;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.OrientDB;
+import com.orientechnologies.orient.core.db.OrientDBConfig;
+import com.orientechnologies.orient.server.OServer;
+
+
+/**
+ * <p>
+ * An implementation of {@link ObjectFactory} that returns an {@link OdbPoolFactory} instance in response to a JNDI
+ * lookup. This is the OrientDB 3.x alternative to {@link OPDPFObjectFactory}. All pools handed out by the factory are
+ * {@link com.orientechnologies.orient.core.db.ODatabasePool} instances that share a single {@link OrientDB} context.
+ * </p>
+ * <p>
+ * The <code>auth</code> attribute should have the value "<code>Container</code>".
+ * </p>
+ * <p>
+ * The maximum number of connections per pool can be set with the <code>capacity</code> attribute.
+ * </p>
+ * <p>
+ * The resource should always be a singleton and a <code>closeMethod</code> attribute with the value "<code>close</code>
+ * " should also be present.
+ * </p>
+ * <p>
+ * Use the name of this class as the value of the <code>factory</code> attribute of the <code>&lt;Resource&gt;</code>
+ * tag.
+ * </p>
+ * <p>
+ * The <code>server</code> attribute is optional and should be used when running an embedded database. It references an
+ * <code>OServer</code> instance produced by an <code>OServerObjectFactory</code> factory. When it is present the
+ * context of the embedded server is shared and the <code>url</code>, <code>serverUser</code> and
+ * <code>serverPass</code> attributes are ignored.
+ * </p>
+ * <p>
+ * Otherwise the <code>url</code> attribute is required and must be an OrientDB environment URL such as
+ * "<code>embedded:/opt/odb/databases</code>" or "<code>remote:localhost</code>". The <code>serverUser</code> and
+ * <code>serverPass</code> attributes are optional and only needed for server level operations on a remote context.
+ * </p>
+ * <p>
+ * The <code>type</code> attribute is <code>com.ashtonit.odb.jndi.OdbPoolFactory</code>.
+ * </p>
+ * <p>
+ * An example resource declaration:
+ * </p>
+ *
+ * <pre>
+ * &lt;Resource
+ *   auth="Container"
+ *   capacity="100"
+ *   closeMethod="close"
+ *   factory="com.ashtonit.odb.jndi.OrientDBObjectFactory"
+ *   name="odbpoolfactory"
+ *   url="embedded:/opt/odb/databases"
+ *   singleton="true"
+ *   type="com.ashtonit.odb.jndi.OdbPoolFactory"
+ * /&gt;
+ * </pre>
+ *
+ * @author Bruce Ashton
+ */
+public class OrientDBObjectFactory implements ObjectFactory {
+
+    private static final String CAPACITY = "capacity";
+    private static final String JAVA_COMP_ENV = "java:comp/env";
+    private static final Object LOCK = new Object();
+    private static final String SERVER = "server";
+    private static final String SERVER_PASS = "serverPass";
+    private static final String SERVER_USER = "serverUser";
+    private static final String URL = "url";
+
+    private static volatile OdbPoolFactory factory;
+
+
+    /**
+     * Returns an OdbPoolFactory instance, creating the shared {@link OrientDB} context on the first call. This instance
+     * is always a singleton, regardless of attributes in server.xml files etc.
+     * <p>
+     * If the <code>server</code> attribute is declared the OServer instance is looked up in JNDI and its context is
+     * shared. It is the responsibility of the OServer object factory to actually start the server up.
+     *
+     * @param obj the naming reference
+     * @param name not used
+     * @param nameCtx the naming context used if present
+     * @param environment used to create an initial context if a naming context is not passed in
+     * @return the {@link OdbPoolFactory} instance
+     * @throws NamingException if the declared server instance cannot be found in the JNDI context, or if neither the
+     *         <code>server</code> nor the <code>url</code> attribute has been declared
+     * @see ObjectFactory#getObjectInstance(Object, Name, Context, Hashtable)
+     */
+    @Override
+    public OdbPoolFactory getObjectInstance(final Object obj, final Name name, final Context nameCtx, final Hashtable<?, ?> environment) throws NamingException {
+        if (factory == null) {
+            synchronized (LOCK) {
+                if (factory == null) {
+                    final Reference reference = (Reference) obj;
+
+                    int capacity = 100;
+                    String serverRef = null;
+                    String serverPass = null;
+                    String serverUser = null;
+                    String url = null;
+
+                    for (final Enumeration<RefAddr> e = reference.getAll(); e.hasMoreElements();) {
+                        final RefAddr addr = e.nextElement();
+                        if (CAPACITY.equalsIgnoreCase(addr.getType())) {
+                            capacity = Integer.valueOf((String) addr.getContent());
+                        } else if (SERVER.equalsIgnoreCase(addr.getType())) {
+                            serverRef = (String) addr.getContent();
+                        } else if (SERVER_PASS.equalsIgnoreCase(addr.getType())) {
+                            serverPass = (String) addr.getContent();
+                        } else if (SERVER_USER.equalsIgnoreCase(addr.getType())) {
+                            serverUser = (String) addr.getContent();
+                        } else if (URL.equalsIgnoreCase(addr.getType())) {
+                            url = (String) addr.getContent();
+                        }
+                    }
+
+                    final OrientDBConfig config = OrientDBConfig.builder()
+                            .addConfig(OGlobalConfiguration.DB_POOL_MAX, capacity)
+                            .build();
+
+                    if (serverRef != null) {
+                        final OServer server;
+                        if (nameCtx != null) {
+                            server = (OServer) nameCtx.lookup(serverRef);
+                        } else {
+                            final Context initCtx = new InitialContext(environment);
+                            final Context envCtx = (Context) initCtx.lookup(JAVA_COMP_ENV);
+                            server = (OServer) envCtx.lookup(serverRef);
+                        }
+                        // The context belongs to the server, it is closed when the server shuts down.
+                        factory = new OdbPoolFactory(server.getContext(), false, config);
+                    } else {
+                        if (url == null) {
+                            throw new NamingException(URL + " attribute has not been declared");
+                        }
+                        factory = new OdbPoolFactory(new OrientDB(url, serverUser, serverPass, config), true, config);
+                    }
+                }
+            }
+        }
+        return factory;
+    }
+}
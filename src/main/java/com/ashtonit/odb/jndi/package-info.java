@@ -1,7 +1,9 @@
 /**
- * This package provides two classes that extend {@link ObjectFactory} for use with a JNDI service.
- * {@link OPDPFObjectFactory} provides an {@link OPartitionedDatabasePoolFactory} singleton instance and
- * {@link OServerObjectFactory} provides an {@link OServer} singleton instance.
+ * This package provides classes that extend {@link ObjectFactory} for use with a JNDI service.
+ * {@link OPDPFObjectFactory} provides an {@link OPartitionedDatabasePoolFactory} singleton instance,
+ * {@link OrientDBObjectFactory} provides an {@link OdbPoolFactory} singleton instance backed by the OrientDB 3.x
+ * <code>OrientDB</code> context, {@link OGraphObjectFactory} provides an {@link OdbGraphFactory} singleton instance for
+ * pooled graphs and {@link OServerObjectFactory} provides an {@link OServer} singleton instance.
  * <p>
  * If running <a href="http://orientdb.com/">OrientDB</a> embedded, it is important to declare the OServer resource and
  * configure {@link OServer#shutdown()} as the close method. This allows the database to be taken down cleanly whenever
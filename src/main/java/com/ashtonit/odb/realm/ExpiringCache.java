@@ -0,0 +1,184 @@
+package com.ashtonit.odb.realm;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+
+/**
+ * A small, size bounded cache whose entries expire a fixed time after they were added. Reads take no lock and do not
+ * modify the map, so cache hits from many request threads do not contend. Expiry is checked on read, and once the
+ * cache grows past its size, expired entries and then arbitrary entries are evicted, so the size bound is approximate.
+ * <p>
+ * Concurrent misses for the same key are coalesced by {@link #get(Object, Loader)}: one thread loads the value while
+ * the others wait for it. A value loaded while entries were being removed is returned but not cached, since it may
+ * already be stale.
+ * </p>
+ *
+ * @author Bruce Ashton
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class ExpiringCache<K, V> {
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+    private final ConcurrentMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+    private final AtomicLong removals = new AtomicLong();
+    private final int size;
+    private final long timeoutNanos;
+
+
+    /**
+     * Constructor.
+     *
+     * @param size the maximum number of entries
+     * @param timeout the time in milliseconds after which an entry expires
+     */
+    ExpiringCache(final int size, final long timeout) {
+        this.size = size;
+        this.timeoutNanos = timeout * 1000000L;
+    }
+
+
+    void clear() {
+        removals.incrementAndGet();
+        map.clear();
+    }
+
+
+    V get(final K key) {
+        final Entry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires - System.nanoTime() < 0) {
+            map.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+
+    /**
+     * Returns the cached value for the key, loading and caching it if there is none. Only one thread loads a given key
+     * at a time. A null value is returned but not cached.
+     *
+     * @param key the key
+     * @param loader loads the value on a miss
+     * @return the value, or null if the loader returned null
+     * @throws Exception if the loader failed
+     */
+    V get(final K key, final Loader<K, V> loader) throws Exception {
+        final V cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long before = removals.get();
+        final FutureTask<V> task = new FutureTask<>(() -> loader.load(key));
+        final FutureTask<V> pending = loading.putIfAbsent(key, task);
+        if (pending != null) {
+            return await(pending);
+        }
+        try {
+            task.run();
+            final V value = await(task);
+            if (value != null && removals.get() == before) {
+                put(key, value);
+            }
+            return value;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+
+    void put(final K key, final V value) {
+        map.put(key, new Entry<>(value, System.nanoTime() + timeoutNanos));
+        if (map.size() > size && evicting.compareAndSet(false, true)) {
+            try {
+                evict();
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+
+    void remove(final K key) {
+        removals.incrementAndGet();
+        map.remove(key);
+    }
+
+
+    void removeIf(final Predicate<? super V> predicate) {
+        removals.incrementAndGet();
+        map.values().removeIf(entry -> predicate.test(entry.value));
+    }
+
+
+    private static <V> V await(final Future<V> task) throws Exception {
+        try {
+            return task.get();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+
+    private void evict() {
+        final long now = System.nanoTime();
+        map.values().removeIf(entry -> entry.expires - now < 0);
+        // Still full of live entries, so drop some. Hash order is as good as any.
+        for (final Iterator<K> i = map.keySet().iterator(); map.size() > size && i.hasNext();) {
+            i.next();
+            i.remove();
+        }
+    }
+
+
+    /**
+     * Loads a value on a cache miss.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    @FunctionalInterface
+    interface Loader<K, V> {
+
+        /**
+         * Loads the value for a key.
+         *
+         * @param key the key
+         * @return the value, or null if there is none
+         * @throws Exception if the value cannot be loaded
+         */
+        V load(K key) throws Exception;
+    }
+
+
+    private static final class Entry<V> {
+
+        final long expires;
+        final V value;
+
+
+        Entry(final V value, final long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.ashtonit.odb.realm;
+
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
+
+
+/**
+ * A channel over which credential and role changes are announced to {@link OdbRealm} instances, so that each can evict
+ * the affected usernames from its caches. How far an announcement reaches depends on the implementation:
+ * {@link LoopbackInvalidationBus} reaches every realm in the same JVM, while {@link LiveQueryInvalidationBus} reaches
+ * every node only for changes written to the database it watches.
+ * <p>
+ * Implementations must have a public no-argument constructor so they can be named by the
+ * <code>invalidationBusClassName</code> attribute of the realm.
+ * </p>
+ *
+ * @author Bruce Ashton
+ * @see LiveQueryInvalidationBus
+ * @see LoopbackInvalidationBus
+ */
+public interface InvalidationBus {
+
+    /**
+     * Announces that the credentials or roles of a user have changed. The realm that owns the bus always evicts the
+     * user; other realms are reached as described by the implementation.
+     *
+     * @param username the user whose cached credentials must be evicted, or null to evict every user
+     */
+    void publish(String username);
+
+
+    /**
+     * Starts delivering invalidations to the listener. The listener is passed the username to evict, or null if every
+     * cached user must be evicted, for instance because events may have been missed.
+     *
+     * @param sessions opens a new session on the realm's database each time it is called. Sessions are not taken from
+     *            the realm's pool, so a bus may hold one for as long as it likes and close it on any thread. The bus
+     *            must close every session it opens.
+     * @param listener receives the usernames to evict
+     * @throws Exception if the bus cannot be started
+     */
+    void start(Callable<? extends ODatabaseDocument> sessions, Consumer<String> listener) throws Exception;
+
+
+    /**
+     * Stops delivering invalidations and releases any resources held by the bus.
+     */
+    void stop();
+}
@@ -0,0 +1,294 @@
+package com.ashtonit.odb.realm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.orientechnologies.common.exception.OException;
+import com.orientechnologies.orient.core.db.OLiveQueryMonitor;
+import com.orientechnologies.orient.core.db.OLiveQueryResultListener;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+
+
+/**
+ * An {@link InvalidationBus} driven by an OrientDB live query. Every node subscribes to the same live query, so a
+ * change made on any node, or directly in the database, is announced to all of them by OrientDB itself.
+ * <p>
+ * By default the bus watches the <code>OUser</code> class and takes the username from the <code>name</code> field, so
+ * password, status and role changes to database users are picked up without any application code. In this mode
+ * {@link #publish(String)} only evicts on the local node.
+ * </p>
+ * <p>
+ * Applications with their own user class, or with role changes that do not touch the user record, can set a
+ * change-log class with {@link #setChangeLogClass(String)}. {@link #publish(String)} then inserts a record holding the
+ * username into that class, and unless another query has been set the bus watches that class, so a published username
+ * reaches every node. A record with no username evicts every user. The watched records are then treated as a log:
+ * only inserts evict, while deletes and the old side of updates are ignored, so cleaning up the log evicts nothing.
+ * </p>
+ * <p>
+ * Nothing bounds the growth of the change-log class. A record is only needed until its insert has been delivered, which
+ * happens as the insert commits, so every record can be deleted at any time, for example with
+ * <code>DELETE FROM ChangeLog</code> run periodically from an OrientDB scheduled function or from the application.
+ * </p>
+ * <p>
+ * If the subscription fails, every cached user is evicted, since events may have been missed, and the bus resubscribes
+ * after a delay. Only one resubscription is ever pending, and the end of a subscription that the bus closed itself is
+ * not treated as a failure.
+ * </p>
+ *
+ * @author Bruce Ashton
+ */
+public class LiveQueryInvalidationBus implements InvalidationBus {
+
+    private static final Logger log = Logger.getLogger(LiveQueryInvalidationBus.class.getName());
+    private static final long RETRY_DELAY = 5000L;
+
+    private String changeLogClass;
+    private volatile ODatabaseDocument database;
+    private volatile ScheduledExecutorService executor;
+    private String field = "name";
+    private volatile long generation;
+    private volatile Consumer<String> listener;
+    private volatile OLiveQueryMonitor monitor;
+    private String query;
+    private final AtomicBoolean retrying = new AtomicBoolean();
+    private volatile Callable<? extends ODatabaseDocument> sessions;
+
+
+    /**
+     * Evicts the username on this node and, if a change-log class is set, inserts a record holding the username into
+     * it so that every other node evicts it too. Without a change-log class other nodes are only notified when the
+     * database record watched by the live query is written.
+     *
+     * @param username the user whose cached credentials must be evicted, or null to evict every user
+     * @see InvalidationBus#publish(String)
+     */
+    @Override
+    public void publish(final String username) {
+        final Callable<? extends ODatabaseDocument> s = sessions;
+        if (changeLogClass != null && s != null) {
+            try (ODatabaseDocument db = s.call(); OResultSet set = db.command("INSERT INTO " + changeLogClass + " SET " + field + " = ?", username)) {
+                // Nothing to read.
+            } catch (final Exception e) {
+                log.log(Level.WARNING, "Invalidation publish failed: username=" + username, e);
+            }
+        }
+        final Consumer<String> l = listener;
+        if (l != null) {
+            l.accept(username);
+        }
+    }
+
+
+    /**
+     * Sets the class into which {@link #publish(String)} inserts a record for every published username. The record's
+     * username is held in the field set by {@link #setField(String)}. If no query is set, the bus watches this class.
+     * Once a change-log class is set, deletes reported by the live query no longer evict, so the query should select
+     * from the change-log class.
+     *
+     * @param changeLogClass the name of the change-log class
+     */
+    public void setChangeLogClass(final String changeLogClass) {
+        this.changeLogClass = changeLogClass;
+    }
+
+
+    /**
+     * Sets the name of the field holding the username in the records returned by the live query. The default is
+     * <code>name</code>.
+     *
+     * @param field the name of the username field
+     */
+    public void setField(final String field) {
+        this.field = field;
+    }
+
+
+    /**
+     * Sets the live query. The default is <code>SELECT FROM</code> the change-log class if one is set, otherwise
+     * <code>SELECT FROM OUser</code>.
+     *
+     * @param query the live query
+     */
+    public void setQuery(final String query) {
+        this.query = query;
+    }
+
+
+    /**
+     * Subscribes to the live query. The first subscription is made on the calling thread, so that the realm's database
+     * can be looked up in its JNDI context. Each subscription holds its own session, opened for it alone, until it is
+     * dropped.
+     *
+     * @param sessions opens new, unpooled sessions on the realm's database
+     * @param listener receives the usernames to evict
+     * @throws Exception if the first subscription fails
+     * @see InvalidationBus#start(Callable, Consumer)
+     */
+    @Override
+    public void start(final Callable<? extends ODatabaseDocument> sessions, final Consumer<String> listener) throws Exception {
+        if (query == null) {
+            query = "SELECT FROM " + (changeLogClass == null ? "OUser" : changeLogClass);
+        }
+        this.sessions = sessions;
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "OdbRealm-invalidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        subscribe();
+    }
+
+
+    /**
+     * Unsubscribes from the live query and closes its database connection.
+     *
+     * @see InvalidationBus#stop()
+     */
+    @Override
+    public void stop() {
+        listener = null;
+        final ScheduledExecutorService e = executor;
+        if (e != null) {
+            e.shutdownNow();
+            executor = null;
+        }
+        unsubscribe();
+    }
+
+
+    private void evict(final OResult result) {
+        final Consumer<String> l = listener;
+        if (l != null && result != null) {
+            // A record without a username, such as a published null, evicts every user.
+            final Object username = result.getProperty(field);
+            l.accept(username == null ? null : username.toString());
+        }
+    }
+
+
+    /**
+     * Drops the subscription of the given generation and schedules a new one. Events from a subscription that has
+     * already been replaced or closed are ignored, as is a failure while a resubscription is already pending.
+     */
+    private void resubscribe(final long failed) {
+        if (failed != generation || !retrying.compareAndSet(false, true)) {
+            return;
+        }
+        unsubscribe();
+        // Events may have been missed while the subscription was down.
+        final Consumer<String> l = listener;
+        if (l != null) {
+            l.accept(null);
+        }
+        final ScheduledExecutorService e = executor;
+        try {
+            if (e == null || e.isShutdown()) {
+                retrying.set(false);
+                return;
+            }
+            e.schedule(() -> {
+                retrying.set(false);
+                if (listener == null) {
+                    return;
+                }
+                try {
+                    subscribe();
+                } catch (final Exception ex) {
+                    log.log(Level.WARNING, "Live query subscription failed: query=" + query, ex);
+                    resubscribe(generation);
+                }
+            }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException ex) {
+            // Stopped in the meantime.
+            retrying.set(false);
+        }
+    }
+
+
+    private synchronized void subscribe() throws Exception {
+        unsubscribe();
+        final long current = generation;
+        final ODatabaseDocument db = sessions.call();
+        try {
+            monitor = db.live(query, new OLiveQueryResultListener() {
+
+                @Override
+                public void onCreate(final ODatabaseDocument database, final OResult data) {
+                    evict(data);
+                }
+
+
+                @Override
+                public void onDelete(final ODatabaseDocument database, final OResult data) {
+                    // Deleting a change-log record is a cleanup, not a change to the user.
+                    if (changeLogClass == null) {
+                        evict(data);
+                    }
+                }
+
+
+                @Override
+                public void onEnd(final ODatabaseDocument database) {
+                    if (listener != null && current == generation) {
+                        log.warning("Live query ended: query=" + query);
+                        resubscribe(current);
+                    }
+                }
+
+
+                @Override
+                public void onError(final ODatabaseDocument database, final OException exception) {
+                    if (current == generation) {
+                        log.log(Level.WARNING, "Live query failed: query=" + query, exception);
+                        resubscribe(current);
+                    }
+                }
+
+
+                @Override
+                public void onUpdate(final ODatabaseDocument database, final OResult before, final OResult after) {
+                    // Evict both in case the username itself changed, unless this is a change-log record.
+                    if (changeLogClass == null) {
+                        evict(before);
+                    }
+                    evict(after);
+                }
+            });
+            database = db;
+        } catch (final Exception e) {
+            db.close();
+            throw e;
+        }
+    }
+
+
+    private synchronized void unsubscribe() {
+        // Anything the old subscription reports from now on, including its own end, is stale.
+        generation++;
+        final OLiveQueryMonitor m = monitor;
+        monitor = null;
+        final ODatabaseDocument db = database;
+        database = null;
+        try {
+            if (m != null) {
+                m.unSubscribe();
+            }
+        } catch (final Exception e) {
+            log.log(Level.FINE, "Unsubscribe failed: query=" + query, e);
+        }
+        if (db != null) {
+            db.activateOnCurrentThread();
+            db.close();
+        }
+    }
+}
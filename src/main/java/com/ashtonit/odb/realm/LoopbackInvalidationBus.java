@@ -0,0 +1,66 @@
+package com.ashtonit.odb.realm;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
+
+
+/**
+ * An in-process {@link InvalidationBus}. A username published on any loopback bus is delivered synchronously to every
+ * started loopback bus in the same JVM, which makes it possible to simulate several nodes with several realms in a
+ * single process for testing. It does not watch the database.
+ *
+ * @author Bruce Ashton
+ */
+public class LoopbackInvalidationBus implements InvalidationBus {
+
+    private static final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Consumer<String> listener;
+
+
+    /**
+     * Delivers the username to every started loopback bus in this JVM.
+     *
+     * @param username the user whose cached credentials must be evicted, or null to evict every user
+     * @see InvalidationBus#publish(String)
+     */
+    @Override
+    public void publish(final String username) {
+        for (final Consumer<String> l : listeners) {
+            l.accept(username);
+        }
+    }
+
+
+    /**
+     * Registers the listener with every other loopback bus in this JVM. No sessions are opened.
+     *
+     * @param sessions not used
+     * @param listener receives the usernames to evict
+     * @see InvalidationBus#start(Callable, Consumer)
+     */
+    @Override
+    public void start(final Callable<? extends ODatabaseDocument> sessions, final Consumer<String> listener) {
+        this.listener = listener;
+        listeners.add(listener);
+    }
+
+
+    /**
+     * Removes the listener from the loopback buses in this JVM.
+     *
+     * @see InvalidationBus#stop()
+     */
+    @Override
+    public void stop() {
+        final Consumer<String> l = listener;
+        if (l != null) {
+            listeners.remove(l);
+            listener = null;
+        }
+    }
+}
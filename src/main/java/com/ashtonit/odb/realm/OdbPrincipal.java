@@ -17,6 +17,10 @@ import org.ietf.jgss.GSSCredential;
  * This class extends {@link GenericPrincipal} and also contains a <code>dbUrl</code> property, the value of which must
  * be the URL of the OrientDB database. The <code>name</code>, <code>password</code> and <code>dbUrl</code> properties
  * can be used to instantiate an OrientGraph instance or obtain one through the pool.
+ * <p>
+ * The <code>password</code> property is only present for BASIC and FORM logins. Principals created by DIGEST
+ * authentication, client certificate authentication or a principal lookup by username have a null password.
+ * </p>
  * 
  * @author Bruce Ashton
  */
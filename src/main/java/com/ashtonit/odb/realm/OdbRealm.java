@@ -2,21 +2,31 @@ package com.ashtonit.odb.realm;
 
 import static com.ashtonit.odb.realm.Version.VERSION;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.Principal;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.realm.RealmBase;
+import org.apache.tomcat.util.security.ConcurrentMessageDigest;
+import org.apache.tomcat.util.security.MD5Encoder;
 import org.ietf.jgss.GSSContext;
 
+import com.ashtonit.odb.jndi.OdbPoolFactory;
+import com.orientechnologies.orient.core.db.ODatabasePool;
 import com.orientechnologies.orient.core.db.OPartitionedDatabasePool;
 import com.orientechnologies.orient.core.db.OPartitionedDatabasePoolFactory;
+import com.orientechnologies.orient.core.db.OrientDB;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.security.OSecurityManager;
 import com.orientechnologies.orient.core.sql.executor.OResult;
 import com.orientechnologies.orient.core.sql.executor.OResultSet;
@@ -71,14 +81,65 @@ import com.orientechnologies.orient.core.sql.executor.OResultSet;
  * database user with read access to the user class for this realm. The "admin"
  * user can be used for this for development and testing purposes.</li>
  * <li>The value of the <code>dbResource</code> attribute must match the value
- * of the "<code>name</code>" attribute in your OdbResource configuration. If it
- * is not present the realm creates its own instance of
- * {@link OPartitionedDatabasePool} with the default capacity of 100.</li>
+ * of the "<code>name</code>" attribute in your OdbResource configuration. The
+ * resource may be either an {@link OPartitionedDatabasePoolFactory} or an
+ * {@link OdbPoolFactory}. If it is not present the realm creates its own
+ * instance of {@link OPartitionedDatabasePool} with the default capacity of
+ * 100.</li>
  * <li>The value of the <code>dbUrl</code> attribute must be a valid OrientDB
  * URI.</li>
+ * <li>The <code>dbName</code> attribute is only used with an
+ * {@link OdbPoolFactory} resource. It is the name of the database within the
+ * shared OrientDB context. If it is not present the last path element of
+ * <code>dbUrl</code> is used.</li>
  * <li>The value of the <code>query</code> attribute must be an OSQL query
  * string that takes one parameter (a user identifier) and returns the password
  * hash and roles.</li>
+ * <li>The <code>digestQuery</code> attribute is optional. If present, DIGEST
+ * authentication is supported. It must be an OSQL query string that takes one
+ * parameter (a user identifier) and returns the precomputed HA1 value, that is
+ * the hex encoded MD5 hash of <code>username:realm:password</code>, with a
+ * parameter name of "ha1" and the roles with a parameter name of "roles".</li>
+ * <li>The <code>digestCacheSize</code> and <code>digestCacheTimeout</code>
+ * attributes are optional. They bound the server-side cache of HA1 values,
+ * which is keyed by username and nonce. The defaults are 1000 entries and
+ * 300000 milliseconds, the same as the nonce defaults of Tomcat's
+ * <code>DigestAuthenticator</code>.</li>
+ * <li>The <code>principalQuery</code> attribute is optional. If present,
+ * client certificate authentication and principal lookup by username, as used
+ * by the <code>SingleSignOn</code> valve, are supported. It must be an OSQL
+ * query string that takes one parameter (a user identifier or, for client
+ * certificates, the subject DN) and returns the roles with a parameter name of
+ * "roles".</li>
+ * <li>The <code>principalCacheSize</code> and
+ * <code>principalCacheTimeout</code> attributes are optional. They bound the
+ * cache of principals found by the principal query. The defaults are 1000
+ * entries and 60000 milliseconds.</li>
+ * <li>The <code>rehashQuery</code> attribute is optional. If present, stored
+ * password hashes whose algorithm or iteration count differ from the target by
+ * more than a factor of two are rehashed after a successful login. The new
+ * hash is computed and written back in batches on a background thread every
+ * <code>rehashInterval</code> milliseconds (default 5000). The command takes
+ * the new hash, the username and the old hash as parameters. The target is set
+ * by <code>hashAlgorithm</code> (<code>PBKDF2WithHmacSHA1</code> or the
+ * default <code>PBKDF2WithHmacSHA256</code>)
+ * and either a fixed <code>hashIterations</code> or a
+ * <code>hashTargetLatency</code> in milliseconds, against which the iteration
+ * count is calibrated when the realm starts.</li>
+ * <li>The <code>invalidationBusClassName</code> attribute is optional. It names
+ * an {@link InvalidationBus} implementation over which changed usernames are
+ * announced, so realms evict them from their caches at once and the cache
+ * timeouts can be long. {@link LiveQueryInvalidationBus} watches the database
+ * with a live query, set by <code>invalidationQuery</code>, and reads the
+ * username from the field named by <code>invalidationField</code> (default
+ * <code>name</code>). By default it watches <code>OUser</code>, so every node
+ * sees changes to database users, but a username published on the bus is only
+ * evicted locally. If <code>invalidationChangeLogClass</code> is set, published
+ * usernames are inserted into that class, which is then watched by default, so
+ * they reach every node. Deleting records from the change-log class evicts
+ * nothing, and nothing else removes them, so the application should delete
+ * them periodically. {@link LoopbackInvalidationBus} only connects realms
+ * in the same JVM and is intended for testing.</li>
  * </ol>
  * <p>
  * An example OdbRealm definition:
@@ -107,17 +168,41 @@ public class OdbRealm extends RealmBase {
     protected static final String name = "OdbRealm";
 
     private static final Logger log = Logger.getLogger(OdbRealm.class.getName());
+    private static final String HA1 = "ha1";
     private static final String PASSWORD = "password";
     private static final String ROLES = "roles";
+    private static final char SEPARATOR = '\u0000';
 
-    private volatile OPartitionedDatabasePool pool;
+    private volatile Supplier<? extends ODatabaseDocument> pool;
     private final Object poolLock = new Object();
+    private volatile Supplier<? extends ODatabaseDocument> sessions;
 
+    private volatile ExpiringCache<String, DigestCredentials> digestCache;
+    private volatile InvalidationBus invalidationBus;
+    private volatile ExpiringCache<String, OdbPrincipal> principalCache;
+    private volatile PasswordRehasher rehasher;
+
+    private String dbName;
     private String dbPass;
     private String dbResource;
     private String dbUrl;
     private String dbUser;
+    private int digestCacheSize = 1000;
+    private long digestCacheTimeout = 300000L;
+    private String digestQuery;
+    private String hashAlgorithm = OSecurityManager.PBKDF2_SHA256_ALGORITHM;
+    private int hashIterations;
+    private long hashTargetLatency;
+    private String invalidationBusClassName;
+    private String invalidationChangeLogClass;
+    private String invalidationField;
+    private String invalidationQuery;
+    private int principalCacheSize = 1000;
+    private long principalCacheTimeout = 60000L;
+    private String principalQuery;
     private String query;
+    private long rehashInterval = 5000L;
+    private String rehashQuery;
 
 
     /**
@@ -135,25 +220,30 @@ public class OdbRealm extends RealmBase {
 
 
     /**
-     * This method of authentication is not supported by this implementation.
+     * Finds the principal for a username without checking credentials. This
+     * is only supported if the <code>principalQuery</code> attribute is set.
      *
-     * @return this method never returns
+     * @param username the username to look up
+     * @return an OdbPrincipal instance if the user exists, null otherwise
      * @see RealmBase#authenticate(String)
-     * @throws UnsupportedOperationException when called
+     * @throws UnsupportedOperationException if the
+     *         <code>principalQuery</code> attribute is not set
      */
     @Override
     public Principal authenticate(final String username) throws UnsupportedOperationException {
-        log.severe("authenticate(String): username=" + username + " dbUrl=" + dbUrl);
-        throw new UnsupportedOperationException();
+        if (principalQuery == null) {
+            log.severe("authenticate(String): username=" + username + " dbUrl=" + dbUrl);
+            throw new UnsupportedOperationException();
+        }
+        return getPrincipal(username);
     }
 
 
     /**
-     * Authenticates a database user. This is the only method of authentication
-     * (username and password) that this realm implementation supports. This is
-     * because of limitations imposed by the arguments needed to construct an
-     * OrientGraph instance - one of the arguments must be the password in plain
-     * text.
+     * Authenticates a database user with a username and password. This is the
+     * only method of authentication that produces a principal holding the
+     * password in plain text, which is needed to construct an OrientGraph
+     * instance as that user.
      *
      * @param username the username to authenticate
      * @param password the password associated with the username
@@ -173,9 +263,9 @@ public class OdbRealm extends RealmBase {
             return null;
         }
 
-        try (ODatabaseDocument document = getPool().acquire()) {
+        try (ODatabaseDocument document = getPool().get()) {
 
-            final OResult result = getOResult(document, username);
+            final OResult result = getOResult(document, query, username);
             if (result == null) {
                 return null;
             }
@@ -191,6 +281,10 @@ public class OdbRealm extends RealmBase {
             }
 
             if (OSecurityManager.instance().checkPassword(password, hash)) {
+                final PasswordRehasher r = rehasher;
+                if (r != null) {
+                    r.onLogin(username, password, hash);
+                }
                 return new OdbPrincipal(username, password, roles, dbUrl);
             }
         } catch (final Exception e) {
@@ -203,32 +297,142 @@ public class OdbRealm extends RealmBase {
 
 
     /**
-     * This method of authentication is not supported by this implementation.
+     * Authenticates a user with DIGEST authentication. This is only supported
+     * if the <code>digestQuery</code> attribute is set.
+     * <p>
+     * The precomputed HA1 value for the user is cached against the nonce, so
+     * only the first request for each nonce goes to the database. Every other
+     * request is checked with a single MD5 hash. Nonce validity and replay
+     * checks are done by Tomcat's <code>DigestAuthenticator</code> before this
+     * method is called.
+     * </p>
      *
-     * @return this method never returns
+     * @param username the username to authenticate
+     * @param clientDigest the digest submitted by the client
+     * @param nonce the unique (or supposedly unique) token used for this
+     *        request
+     * @param nc the nonce counter
+     * @param cnonce the client chosen nonce
+     * @param qop the "quality of protection" (<code>nc</code> and
+     *        <code>cnonce</code> are only used if <code>qop</code> is not null)
+     * @param realm the realm name
+     * @param md5a2 the second MD5 digest used to calculate the digest: MD5(Method
+     *        + ":" + uri)
+     * @return an OdbPrincipal instance if authentication is successful, null
+     *         otherwise
      * @see RealmBase#authenticate(String, String, String, String, String,
      *      String, String, String)
-     * @throws UnsupportedOperationException when called
+     * @throws UnsupportedOperationException if the <code>digestQuery</code>
+     *         attribute is not set
      */
     @Override
     public Principal authenticate(final String username, final String clientDigest, final String nonce, final String nc, final String cnonce, final String qop, final String realm, final String md5a2) throws UnsupportedOperationException {
-        log.severe("authenticate(String, String, String, String, String, String, String, String): username=" + username
-                + " dbUrl=" + dbUrl);
-        throw new UnsupportedOperationException();
+        if (digestQuery == null) {
+            log.severe("authenticate(String, String, String, String, String, String, String, String): username="
+                    + username + " dbUrl=" + dbUrl);
+            throw new UnsupportedOperationException();
+        }
+        if (username == null) {
+            containerLog.warn("username is null");
+            return null;
+        }
+        if (clientDigest == null || nonce == null) {
+            containerLog.warn("digest is null");
+            return null;
+        }
+
+        final DigestCredentials credentials = getDigestCredentials(username, nonce);
+        if (credentials == null) {
+            return null;
+        }
+
+        final String serverDigestValue;
+        if (qop == null) {
+            serverDigestValue = credentials.ha1 + ":" + nonce + ":" + md5a2;
+        } else {
+            serverDigestValue = credentials.ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":" + qop + ":" + md5a2;
+        }
+        final String serverDigest = MD5Encoder.encode(ConcurrentMessageDigest.digestMD5(serverDigestValue.getBytes(StandardCharsets.ISO_8859_1)));
+
+        if (MessageDigest.isEqual(serverDigest.getBytes(StandardCharsets.ISO_8859_1), clientDigest.toLowerCase().getBytes(StandardCharsets.ISO_8859_1))) {
+            return new OdbPrincipal(username, null, credentials.roles, dbUrl);
+        }
+        return null;
     }
 
 
     /**
-     * This method of authentication is not supported by this implementation.
+     * Authenticates a client certificate chain. This is only supported if the
+     * <code>principalQuery</code> attribute is set.
+     * <p>
+     * The certificates are validated by {@link RealmBase}. The username is
+     * then taken from the first certificate by the configured
+     * <code>X509UsernameRetriever</code>, which by default returns the subject
+     * DN, and passed to {@link #getPrincipal(String)}.
+     * </p>
      *
-     * @return this method never returns
+     * @param certs the client certificate chain
+     * @return an OdbPrincipal instance if authentication is successful, null
+     *         otherwise
      * @see RealmBase#authenticate(X509Certificate[])
-     * @throws UnsupportedOperationException when called
+     * @throws UnsupportedOperationException if the
+     *         <code>principalQuery</code> attribute is not set
      */
     @Override
     public Principal authenticate(final X509Certificate certs[]) throws UnsupportedOperationException {
-        log.severe("authenticate(X509Certificate[]): dbUrl=" + dbUrl);
-        throw new UnsupportedOperationException();
+        if (principalQuery == null) {
+            log.severe("authenticate(X509Certificate[]): dbUrl=" + dbUrl);
+            throw new UnsupportedOperationException();
+        }
+        return super.authenticate(certs);
+    }
+
+
+    /**
+     * Sets the maximum number of HA1 values held in the DIGEST authentication
+     * cache.
+     *
+     * @param digestCacheSize the maximum number of cached HA1 values
+     */
+    public void setDigestCacheSize(final int digestCacheSize) {
+        this.digestCacheSize = digestCacheSize;
+    }
+
+
+    /**
+     * Sets the time in milliseconds after which a cached HA1 value expires.
+     *
+     * @param digestCacheTimeout the time in milliseconds after which a cached
+     *        HA1 value expires
+     */
+    public void setDigestCacheTimeout(final long digestCacheTimeout) {
+        this.digestCacheTimeout = digestCacheTimeout;
+    }
+
+
+    /**
+     * Sets the SQL query used to select the precomputed HA1 value and roles
+     * for the given user name. DIGEST authentication is only supported if this
+     * is set.
+     *
+     * @param digestQuery the query used to select the HA1 value and roles for
+     *        the given user name
+     */
+    public void setDigestQuery(final String digestQuery) {
+        this.digestQuery = digestQuery;
+    }
+
+
+    /**
+     * Sets the name of the database within the shared OrientDB context. This is
+     * only used when <code>dbResource</code> refers to an
+     * {@link OdbPoolFactory}. If it is not set the last path element of the
+     * database URL is used.
+     *
+     * @param dbName the name of the database
+     */
+    public void setDbName(final String dbName) {
+        this.dbName = dbName;
     }
 
 
@@ -246,9 +450,9 @@ public class OdbRealm extends RealmBase {
     /**
      * Sets the name of an arbitrary database resource instance.
      * <p>
-     * If present the realm will use it to look up the
-     * {@link OPartitionedDatabasePoolFactory} in the Tomcat JNDI service and
-     * obtain a pool from it.
+     * If present the realm will use it to look up either an
+     * {@link OPartitionedDatabasePoolFactory} or an {@link OdbPoolFactory} in
+     * the Tomcat JNDI service and obtain a pool from it.
      * </p>
      * <p>
      * If it is not present the realm will create a new
@@ -283,6 +487,223 @@ public class OdbRealm extends RealmBase {
     }
 
 
+    /**
+     * Returns the invalidation bus used by this realm. Applications can
+     * publish a username on it after changing a user's password or roles.
+     * Whether other nodes see it depends on the bus and its configuration.
+     *
+     * @return the invalidation bus, or null if none is configured
+     */
+    public InvalidationBus getInvalidationBus() {
+        return invalidationBus;
+    }
+
+
+    /**
+     * Sets the invalidation bus used by this realm. This is an alternative to
+     * <code>invalidationBusClassName</code> for embedded use.
+     *
+     * @param invalidationBus the invalidation bus
+     */
+    public void setInvalidationBus(final InvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
+
+    /**
+     * Sets the name of the {@link InvalidationBus} implementation used to
+     * evict changed users from the realm's caches.
+     *
+     * @param invalidationBusClassName the name of the invalidation bus class
+     */
+    public void setInvalidationBusClassName(final String invalidationBusClassName) {
+        this.invalidationBusClassName = invalidationBusClassName;
+    }
+
+
+    /**
+     * Sets the class into which published usernames are inserted, so that
+     * they reach every node. This is only used by
+     * {@link LiveQueryInvalidationBus}.
+     *
+     * @param invalidationChangeLogClass the name of the change-log class
+     */
+    public void setInvalidationChangeLogClass(final String invalidationChangeLogClass) {
+        this.invalidationChangeLogClass = invalidationChangeLogClass;
+    }
+
+
+    /**
+     * Sets the field holding the username in records returned by the
+     * invalidation live query. This is only used by
+     * {@link LiveQueryInvalidationBus}.
+     *
+     * @param invalidationField the name of the username field
+     */
+    public void setInvalidationField(final String invalidationField) {
+        this.invalidationField = invalidationField;
+    }
+
+
+    /**
+     * Sets the invalidation live query. This is only used by
+     * {@link LiveQueryInvalidationBus}.
+     *
+     * @param invalidationQuery the live query
+     */
+    public void setInvalidationQuery(final String invalidationQuery) {
+        this.invalidationQuery = invalidationQuery;
+    }
+
+
+    /**
+     * Sets the algorithm used when rehashing stored passwords. It must be
+     * <code>PBKDF2WithHmacSHA1</code> or <code>PBKDF2WithHmacSHA256</code>,
+     * otherwise the realm fails to start when rehash on login is enabled. The
+     * default is <code>PBKDF2WithHmacSHA256</code>.
+     *
+     * @param hashAlgorithm the algorithm used when rehashing stored passwords
+     */
+    public void setHashAlgorithm(final String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+
+    /**
+     * Sets a fixed iteration count used when rehashing stored passwords. If
+     * set, start up calibration is skipped.
+     *
+     * @param hashIterations the iteration count used when rehashing stored
+     *        passwords
+     */
+    public void setHashIterations(final int hashIterations) {
+        this.hashIterations = hashIterations;
+    }
+
+
+    /**
+     * Sets the target time in milliseconds for one password hash. If set, and
+     * <code>hashIterations</code> is not, the iteration count is calibrated
+     * against this target when the realm starts.
+     *
+     * @param hashTargetLatency the target time in milliseconds for one
+     *        password hash
+     */
+    public void setHashTargetLatency(final long hashTargetLatency) {
+        this.hashTargetLatency = hashTargetLatency;
+    }
+
+
+    /**
+     * Sets the time in milliseconds between batches of password rehashes.
+     *
+     * @param rehashInterval the time in milliseconds between batches
+     */
+    public void setRehashInterval(final long rehashInterval) {
+        this.rehashInterval = rehashInterval;
+    }
+
+
+    /**
+     * Sets the SQL command used to write back a rehashed password. It takes
+     * three parameters, the new hash, the username and the old hash, and should
+     * only update the record if the stored hash still equals the old hash. It
+     * must return the number of records updated in a field named
+     * <code>count</code>, as an OSQL <code>UPDATE</code> does.
+     * Rehash on login is only enabled if this is set.
+     *
+     * @param rehashQuery the command used to write back a rehashed password
+     */
+    public void setRehashQuery(final String rehashQuery) {
+        this.rehashQuery = rehashQuery;
+    }
+
+
+    /**
+     * Returns the number of stored passwords rehashed since the realm started.
+     *
+     * @return the number of rehashed passwords, or zero if rehash on login is
+     *         not enabled
+     */
+    public long getRehashedCount() {
+        final PasswordRehasher r = rehasher;
+        return r == null ? 0L : r.getRehashedCount();
+    }
+
+
+    /**
+     * Returns the number of stored passwords that could not be rehashed since
+     * the realm started.
+     *
+     * @return the number of failed rehashes, or zero if rehash on login is not
+     *         enabled
+     */
+    public long getRehashFailedCount() {
+        final PasswordRehasher r = rehasher;
+        return r == null ? 0L : r.getFailedCount();
+    }
+
+
+    /**
+     * Returns the number of rehashes that were not written because the stored
+     * password hash had changed since the login.
+     *
+     * @return the number of skipped rehashes, or zero if rehash on login is not
+     *         enabled
+     */
+    public long getRehashSkippedCount() {
+        final PasswordRehasher r = rehasher;
+        return r == null ? 0L : r.getSkippedCount();
+    }
+
+
+    /**
+     * Returns the number of logins waiting to have their stored password
+     * rehashed.
+     *
+     * @return the number of pending rehashes, or zero if rehash on login is not
+     *         enabled
+     */
+    public int getRehashPendingCount() {
+        final PasswordRehasher r = rehasher;
+        return r == null ? 0 : r.getPendingCount();
+    }
+
+
+    /**
+     * Sets the maximum number of principals held in the principal cache.
+     *
+     * @param principalCacheSize the maximum number of cached principals
+     */
+    public void setPrincipalCacheSize(final int principalCacheSize) {
+        this.principalCacheSize = principalCacheSize;
+    }
+
+
+    /**
+     * Sets the time in milliseconds after which a cached principal expires.
+     *
+     * @param principalCacheTimeout the time in milliseconds after which a
+     *        cached principal expires
+     */
+    public void setPrincipalCacheTimeout(final long principalCacheTimeout) {
+        this.principalCacheTimeout = principalCacheTimeout;
+    }
+
+
+    /**
+     * Sets the SQL query used to select the roles for the given user name or
+     * certificate subject. Client certificate authentication and principal
+     * lookup by username are only supported if this is set.
+     *
+     * @param principalQuery the query used to select the roles for the given
+     *        user name
+     */
+    public void setPrincipalQuery(final String principalQuery) {
+        this.principalQuery = principalQuery;
+    }
+
+
     /**
      * Sets the SQL query used to select the password and roles for the given
      * user name.
@@ -307,7 +728,91 @@ public class OdbRealm extends RealmBase {
 
 
     /**
-     * This method is not supported by this implementation.
+     * Creates the DIGEST authentication and principal caches, calibrates the
+     * password hash cost if required, starts the invalidation bus and starts
+     * the realm.
+     *
+     * @throws LifecycleException if the realm fails to start
+     * @see RealmBase#startInternal()
+     */
+    @Override
+    protected void startInternal() throws LifecycleException {
+        digestCache = new ExpiringCache<>(digestCacheSize, digestCacheTimeout);
+        principalCache = new ExpiringCache<>(principalCacheSize, principalCacheTimeout);
+        if (rehashQuery != null) {
+            if (!OSecurityManager.PBKDF2_ALGORITHM.equals(hashAlgorithm)
+                    && !OSecurityManager.PBKDF2_SHA256_ALGORITHM.equals(hashAlgorithm)) {
+                throw new LifecycleException("hashAlgorithm must be " + OSecurityManager.PBKDF2_ALGORITHM + " or "
+                        + OSecurityManager.PBKDF2_SHA256_ALGORITHM + ": " + hashAlgorithm);
+            }
+            int iterations = hashIterations;
+            if (iterations <= 0 && hashTargetLatency > 0) {
+                iterations = PasswordRehasher.calibrate(hashAlgorithm, hashTargetLatency);
+                containerLog.info("Calibrated " + hashAlgorithm + " to " + iterations + " iterations for "
+                        + hashTargetLatency + "ms");
+            }
+            if (iterations > 0) {
+                rehasher = new PasswordRehasher(() -> getPool().get(), rehashQuery, hashAlgorithm, iterations, rehashInterval);
+            } else {
+                containerLog.warn("rehashQuery is set but neither hashIterations nor hashTargetLatency is");
+            }
+        }
+        if (invalidationBus == null && invalidationBusClassName != null) {
+            try {
+                invalidationBus = (InvalidationBus) Class.forName(invalidationBusClassName).newInstance();
+            } catch (final ReflectiveOperationException e) {
+                throw new LifecycleException("Cannot create invalidation bus: " + invalidationBusClassName, e);
+            }
+        }
+        if (invalidationBus != null) {
+            if (invalidationBus instanceof LiveQueryInvalidationBus) {
+                final LiveQueryInvalidationBus liveQueryBus = (LiveQueryInvalidationBus) invalidationBus;
+                if (invalidationChangeLogClass != null) {
+                    liveQueryBus.setChangeLogClass(invalidationChangeLogClass);
+                }
+                if (invalidationQuery != null) {
+                    liveQueryBus.setQuery(invalidationQuery);
+                }
+                if (invalidationField != null) {
+                    liveQueryBus.setField(invalidationField);
+                }
+            }
+            try {
+                invalidationBus.start(() -> getSessions().get(), this::invalidate);
+            } catch (final Exception e) {
+                throw new LifecycleException("Cannot start invalidation bus", e);
+            }
+        }
+        super.startInternal();
+    }
+
+
+    /**
+     * Writes any pending password rehashes and stops the realm.
+     *
+     * @throws LifecycleException if the realm fails to stop
+     * @see RealmBase#stopInternal()
+     */
+    @Override
+    protected void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        if (invalidationBus != null) {
+            invalidationBus.stop();
+        }
+        final PasswordRehasher r = rehasher;
+        if (r != null) {
+            rehasher = null;
+            r.stop();
+        }
+    }
+
+
+    /**
+     * This method is not supported by this implementation. Only password
+     * hashes and precomputed DIGEST HA1 values are stored, so there is no
+     * plain text password to return. DIGEST authentication does not need it,
+     * since {@link #authenticate(String, String, String, String, String, String, String, String)}
+     * is overridden to use the HA1 value from the <code>digestQuery</code>.
      *
      * @return this method never returns
      * @see RealmBase#getPassword(String)
@@ -321,20 +826,103 @@ public class OdbRealm extends RealmBase {
 
 
     /**
-     * This method is not supported by this implementation.
+     * Returns the principal for a username, or certificate subject, using the
+     * <code>principalQuery</code>. Principals found are cached for
+     * <code>principalCacheTimeout</code> milliseconds.
      *
-     * @return this method never returns
+     * @param username the username or certificate subject to look up
+     * @return an OdbPrincipal instance if the user exists, null otherwise
      * @see RealmBase#getPrincipal(String)
-     * @throws UnsupportedOperationException when called
+     * @throws UnsupportedOperationException if the
+     *         <code>principalQuery</code> attribute is not set
      */
     @Override
     protected Principal getPrincipal(final String username) throws UnsupportedOperationException {
-        log.severe("getPrincipal(String): username=" + username + " dbUrl=" + dbUrl);
-        throw new UnsupportedOperationException();
+        if (principalQuery == null) {
+            log.severe("getPrincipal(String): username=" + username + " dbUrl=" + dbUrl);
+            throw new UnsupportedOperationException();
+        }
+        if (username == null) {
+            containerLog.warn("username is null");
+            return null;
+        }
+
+        try {
+            return principalCache.get(username, this::findPrincipal);
+        } catch (final Exception e) {
+            containerLog.error("Principal lookup failed: dbUrl=" + dbUrl, e);
+            log.warning("getPrincipal(String): username=" + username + " dbUrl=" + dbUrl);
+            log.throwing(OdbRealm.class.getName(), "getPrincipal(String)", e);
+        }
+        return null;
+    }
+
+
+    private final DigestCredentials findDigestCredentials(final String username) throws Exception {
+        try (ODatabaseDocument document = getPool().get()) {
+
+            final OResult result = getOResult(document, digestQuery, username);
+            if (result == null) {
+                return null;
+            }
+
+            final String ha1 = result.getProperty(HA1);
+            if (ha1 == null) {
+                throw new NullPointerException("The ha1 field of the digest query returned null");
+            }
+
+            final List<String> roles = result.getProperty(ROLES);
+            if (roles == null) {
+                throw new NullPointerException("The roles field of the digest query returned null");
+            }
+
+            return new DigestCredentials(username, ha1.toLowerCase(), roles);
+        }
     }
 
 
-    private final OResult getOResult(final ODatabaseDocument document, final String username) {
+    private final OdbPrincipal findPrincipal(final String username) throws Exception {
+        try (ODatabaseDocument document = getPool().get()) {
+
+            final OResult result = getOResult(document, principalQuery, username);
+            if (result == null) {
+                return null;
+            }
+
+            final List<String> roles = result.getProperty(ROLES);
+            if (roles == null) {
+                throw new NullPointerException("The roles field of the principal query returned null");
+            }
+
+            return new OdbPrincipal(username, null, roles, dbUrl);
+        }
+    }
+
+
+    private final DigestCredentials getDigestCredentials(final String username, final String nonce) {
+        try {
+            return digestCache.get(username + SEPARATOR + nonce, key -> findDigestCredentials(username));
+        } catch (final Exception e) {
+            containerLog.error("Authentication failed: dbUrl=" + dbUrl, e);
+            log.warning("getDigestCredentials(String, String): username=" + username + " dbUrl=" + dbUrl);
+            log.throwing(OdbRealm.class.getName(), "getDigestCredentials(String, String)", e);
+        }
+        return null;
+    }
+
+
+    private final void invalidate(final String username) {
+        if (username == null) {
+            principalCache.clear();
+            digestCache.clear();
+            return;
+        }
+        principalCache.remove(username);
+        digestCache.removeIf(credentials -> username.equals(credentials.username));
+    }
+
+
+    private final OResult getOResult(final ODatabaseDocument document, final String query, final String username) {
         OResult result = null;
         try (final OResultSet set = document.query(query, username)) {
             if (set.hasNext()) {
@@ -348,7 +936,17 @@ public class OdbRealm extends RealmBase {
     }
 
 
-    private final OPartitionedDatabasePool getPool() throws NamingException {
+    private final String getDbName() {
+        if (dbName != null) {
+            return dbName;
+        }
+        // Fall back to the last element of a URL like plocal:/opt/odb/mydb
+        final int index = Math.max(dbUrl.lastIndexOf('/'), dbUrl.lastIndexOf(':'));
+        return dbUrl.substring(index + 1);
+    }
+
+
+    private final Supplier<? extends ODatabaseDocument> getPool() throws NamingException {
         if (pool == null) {
             synchronized (poolLock) {
                 if (pool == null) {
@@ -357,14 +955,54 @@ public class OdbRealm extends RealmBase {
                         // Use the factory if dbResource is set.
                         final Context initCtx = new InitialContext();
                         final Context envCtx = (Context) initCtx.lookup("java:comp/env");
-                        final OPartitionedDatabasePoolFactory factory = (OPartitionedDatabasePoolFactory) envCtx.lookup(dbResource);
-                        pool = factory.get(dbUrl, dbUser, dbPass);
+                        final Object factory = envCtx.lookup(dbResource);
+                        if (factory instanceof OdbPoolFactory) {
+                            final OrientDB orientDB = ((OdbPoolFactory) factory).getOrientDB();
+                            final String name = getDbName();
+                            sessions = () -> orientDB.open(name, dbUser, dbPass);
+                            final ODatabasePool sessionPool = ((OdbPoolFactory) factory).get(name, dbUser, dbPass);
+                            pool = sessionPool::acquire;
+                        } else {
+                            sessions = () -> new ODatabaseDocumentTx(dbUrl).open(dbUser, dbPass);
+                            final OPartitionedDatabasePool partitionedPool = ((OPartitionedDatabasePoolFactory) factory).get(dbUrl, dbUser, dbPass);
+                            pool = partitionedPool::acquire;
+                        }
                     } else {
-                        pool = new OPartitionedDatabasePool(dbUrl, dbUser, dbPass);
+                        sessions = () -> new ODatabaseDocumentTx(dbUrl).open(dbUser, dbPass);
+                        final OPartitionedDatabasePool partitionedPool = new OPartitionedDatabasePool(dbUrl, dbUser, dbPass);
+                        pool = partitionedPool::acquire;
                     }
                 }
             }
         }
         return pool;
     }
+
+
+    /**
+     * Returns a supplier of new sessions that are not taken from the realm's
+     * pool. Pooled connections are bound to the thread that acquired them, so
+     * a session held for a long time, or closed on another thread, must be
+     * opened this way. The first call must be made where the realm's JNDI
+     * context is available, as for {@link #getPool()}.
+     */
+    private final Supplier<? extends ODatabaseDocument> getSessions() throws NamingException {
+        getPool();
+        return sessions;
+    }
+
+
+    private static final class DigestCredentials {
+
+        final String ha1;
+        final List<String> roles;
+        final String username;
+
+
+        DigestCredentials(final String username, final String ha1, final List<String> roles) {
+            this.username = username;
+            this.ha1 = ha1;
+            this.roles = roles;
+        }
+    }
 }
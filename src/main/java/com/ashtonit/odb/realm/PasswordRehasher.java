@@ -0,0 +1,252 @@
+package com.ashtonit.odb.realm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
+import com.orientechnologies.orient.core.security.OSecurityManager;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+
+
+/**
+ * Rehashes stored passwords whose algorithm or iteration count differs from the configured setting, after a
+ * successful login. Hashing and write-back happen on a single background thread, in batches, so the request thread
+ * only pays for an inspection of the stored hash string.
+ * <p>
+ * The write-back query takes three parameters: the new hash, the username and the old hash. It should only update the
+ * record if the stored hash still equals the old hash, so that a password changed in the meantime is never
+ * overwritten.
+ * </p>
+ *
+ * @author Bruce Ashton
+ */
+final class PasswordRehasher {
+
+    private static final int CALIBRATION_START = 1000;
+    private static final String COUNT = "count";
+    private static final int MIN_ITERATIONS = 1000;
+
+    private static final Logger log = Logger.getLogger(PasswordRehasher.class.getName());
+
+    private final String algorithm;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong failed = new AtomicLong();
+    private final int iterations;
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Callable<? extends ODatabaseDocument> pool;
+    private final String query;
+    private final AtomicLong rehashed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     *
+     * @param pool supplies database connections for the write-back
+     * @param query the write-back query
+     * @param algorithm the target hash algorithm
+     * @param iterations the target iteration count
+     * @param interval the time in milliseconds between batches
+     */
+    PasswordRehasher(final Callable<? extends ODatabaseDocument> pool, final String query, final String algorithm, final int iterations, final long interval) {
+        this.pool = pool;
+        this.query = query;
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "OdbRealm-rehash");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Measures the cost of hashing with the given algorithm and returns the iteration count that takes roughly the
+     * target time on this machine.
+     *
+     * @param algorithm the hash algorithm
+     * @param target the target time in milliseconds for one hash
+     * @return the calibrated iteration count
+     */
+    static int calibrate(final String algorithm, final long target) {
+        final OSecurityManager manager = OSecurityManager.instance();
+        final long targetNanos = TimeUnit.MILLISECONDS.toNanos(target);
+        // Warm up, then keep doubling until a single hash takes a meaningful fraction of the target.
+        manager.createHashWithSalt("calibrate", CALIBRATION_START, algorithm);
+        int count = CALIBRATION_START;
+        long elapsed;
+        while (true) {
+            final long start = System.nanoTime();
+            manager.createHashWithSalt("calibrate", count, algorithm);
+            elapsed = System.nanoTime() - start;
+            if (elapsed >= targetNanos / 4 || count > Integer.MAX_VALUE / 2) {
+                break;
+            }
+            count *= 2;
+        }
+        final long calibrated = count * targetNanos / Math.max(elapsed, 1L);
+        return (int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, calibrated));
+    }
+
+
+    /**
+     * Returns the number of stored hashes that could not be rewritten.
+     *
+     * @return the number of failed rehashes
+     */
+    long getFailedCount() {
+        return failed.get();
+    }
+
+
+    /**
+     * Returns the number of logins waiting to be rehashed.
+     *
+     * @return the number of pending rehashes
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+
+    /**
+     * Returns the number of stored hashes rewritten so far.
+     *
+     * @return the number of rehashed passwords
+     */
+    long getRehashedCount() {
+        return rehashed.get();
+    }
+
+
+    /**
+     * Returns the number of rehashes that were not written because the stored
+     * hash had changed since the login.
+     *
+     * @return the number of skipped rehashes
+     */
+    long getSkippedCount() {
+        return skipped.get();
+    }
+
+
+    /**
+     * Queues a rehash if the stored hash does not match the target algorithm and iteration count. This is cheap and
+     * safe to call on the request thread after a successful login.
+     *
+     * @param username the authenticated username
+     * @param password the plain text password that matched the hash
+     * @param hash the stored hash
+     */
+    void onLogin(final String username, final String password, final String hash) {
+        if (needsRehash(hash)) {
+            pending.putIfAbsent(username, new Pending(password, hash));
+        }
+    }
+
+
+    /**
+     * Writes any pending rehashes and stops the background thread.
+     */
+    void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final List<Map.Entry<String, Pending>> batch = new ArrayList<>(pending.entrySet());
+        int count = 0;
+        int unchanged = 0;
+        try (ODatabaseDocument document = pool.call()) {
+            for (final Map.Entry<String, Pending> entry : batch) {
+                final String username = entry.getKey();
+                final Pending p = entry.getValue();
+                pending.remove(username, p);
+                try {
+                    final String hash = '{' + algorithm + '}'
+                            + OSecurityManager.instance().createHashWithSalt(p.password, iterations, algorithm);
+                    long updated = 0L;
+                    try (OResultSet set = document.command(query, hash, username, p.hash)) {
+                        while (set.hasNext()) {
+                            final Object value = set.next().getProperty(COUNT);
+                            if (value instanceof Number) {
+                                updated += ((Number) value).longValue();
+                            }
+                        }
+                    }
+                    if (updated > 0) {
+                        count++;
+                    } else {
+                        // The stored hash changed since the login, so it was left alone.
+                        unchanged++;
+                        log.fine("Rehash skipped, stored hash changed: username=" + username);
+                    }
+                } catch (final Exception e) {
+                    failed.incrementAndGet();
+                    log.log(Level.WARNING, "Rehash failed: username=" + username, e);
+                }
+            }
+        } catch (final Exception e) {
+            // Entries not yet taken from the pending map are retried with the next batch.
+            log.log(Level.WARNING, "Rehash batch failed", e);
+        }
+        final long total = rehashed.addAndGet(count);
+        final long totalSkipped = skipped.addAndGet(unchanged);
+        log.info("Rehashed " + count + " passwords, skipped " + unchanged + ": total=" + total + " skipped="
+                + totalSkipped + " failed=" + failed.get() + " pending=" + pending.size());
+    }
+
+
+    private boolean needsRehash(final String hash) {
+        if (!hash.startsWith("{" + algorithm + "}")) {
+            return true;
+        }
+        // PBKDF2 hashes end with :salt:iterations
+        final int index = hash.lastIndexOf(':');
+        if (index < 0) {
+            return true;
+        }
+        final int stored;
+        try {
+            stored = Integer.parseInt(hash.substring(index + 1));
+        } catch (final NumberFormatException e) {
+            return true;
+        }
+        // Calibration is noisy, so only rehash when the cost is off by more than a factor of two.
+        return stored < iterations / 2 || stored / 2 > iterations;
+    }
+
+
+    private static final class Pending {
+
+        final String hash;
+        final String password;
+
+
+        Pending(final String password, final String hash) {
+            this.password = password;
+            this.hash = hash;
+        }
+    }
+}
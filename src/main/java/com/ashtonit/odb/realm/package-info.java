@@ -4,6 +4,10 @@
  * {@link OdbRealm} is configured in the web application or server context. {@link OdbPrincipal} is required to allow
  * OrientDB user logins to be used as web application logins.
  * </p>
+ * <p>
+ * {@link InvalidationBus} and its implementations {@link LiveQueryInvalidationBus} and {@link LoopbackInvalidationBus}
+ * let realms on many nodes evict changed users from their caches.
+ * </p>
  * 
  * @author Bruce Ashton
  */